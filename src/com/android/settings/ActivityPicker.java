@@ -237,7 +237,8 @@ public class ActivityPicker extends AlertActivity implements
                     label = resolveInfo.activityInfo.name;
                 }
 
-                icon = getResizer(context).createIconThumbnail(resolveInfo.loadIcon(pm));
+                icon = getResizer(context).createIconThumbnail(
+                        AppIconCache.getInstance(context).getIcon(resolveInfo));
                 packageName = resolveInfo.activityInfo.applicationInfo.packageName;
                 className = resolveInfo.activityInfo.name;
             }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of application icons, scaled down to the launcher icon
+ * size.  Icons are kept in memory up to a fixed number of bytes, least
+ * recently used first out, and as PNG thumbnails on disk so that they do not
+ * have to be loaded from the package again.  Entries are keyed by package
+ * (or activity) name and the time the package was last updated, so an
+ * updated package never gets its old icon.  Thumbnails are written one at a
+ * time on a background thread, and only appear on disk once complete.
+ */
+public class AppIconCache {
+    private static final String TAG = "AppIconCache";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+    private static final String DIR_NAME = "app_icons";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final ThreadPoolExecutor sWriteExecutor = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread("AppIconCache Writer") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    static {
+        sWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Object sLock = new Object();
+    private static AppIconCache sInstance;
+
+    private final Resources mResources;
+    private final PackageManager mPm;
+    private final File mDir;
+    private final int mIconSize;
+    private final LruCache<String, Bitmap> mMemory;
+
+    // Key of the thumbnail on disk for each package or activity, listed
+    // from the directory on the first write.  Only touched by the writer.
+    private HashMap<String, String> mDiskKeys;
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppIconCache(Context context) {
+        mResources = context.getResources();
+        mPm = context.getPackageManager();
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        mIconSize = (int) mResources.getDimension(android.R.dimen.app_icon_size);
+        mMemory = new LruCache<String, Bitmap>(MAX_MEMORY_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    trimMemory();
+                }
+            }
+
+            public void onLowMemory() {
+                trimMemory();
+            }
+
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    /**
+     * Returns the icon of the given application.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        final String key = info.packageName + "@" + new File(info.sourceDir).lastModified();
+        Bitmap bitmap = getCachedBitmap(key);
+        if (bitmap == null) {
+            bitmap = putBitmap(key, info.packageName, info.loadIcon(mPm));
+        }
+        return newDrawable(bitmap);
+    }
+
+    /**
+     * Returns the icon the given resolved activity should be shown with.
+     */
+    public Drawable getIcon(ResolveInfo resolveInfo) {
+        final ApplicationInfo appInfo = resolveInfo.activityInfo.applicationInfo;
+        final String prefix = appInfo.packageName + "-" + resolveInfo.activityInfo.name;
+        final String key = prefix + "@" + new File(appInfo.sourceDir).lastModified();
+        Bitmap bitmap = getCachedBitmap(key);
+        if (bitmap == null) {
+            bitmap = putBitmap(key, prefix, resolveInfo.loadIcon(mPm));
+        }
+        return newDrawable(bitmap);
+    }
+
+    /**
+     * Drops all icons held in memory.  Thumbnails on disk are kept.
+     */
+    public void trimMemory() {
+        mMemory.evictAll();
+    }
+
+    private Bitmap getCachedBitmap(String key) {
+        Bitmap bitmap = mMemory.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        File file = new File(mDir, key + ".png");
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                if (DEBUG) Log.d(TAG, "Loaded " + key + " from disk");
+                mMemory.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap putBitmap(final String key, final String prefix, Drawable icon) {
+        final Bitmap bitmap = createThumbnail(icon);
+        mMemory.put(key, bitmap);
+        sWriteExecutor.execute(new Runnable() {
+            public void run() {
+                writeThumbnail(key, prefix, bitmap);
+            }
+        });
+        return bitmap;
+    }
+
+    private Drawable newDrawable(Bitmap bitmap) {
+        BitmapDrawable drawable = new BitmapDrawable(mResources, bitmap);
+        drawable.setBounds(0, 0, mIconSize, mIconSize);
+        return drawable;
+    }
+
+    /**
+     * Renders the icon into a bitmap no larger than the launcher icon size,
+     * keeping its aspect ratio.
+     */
+    private Bitmap createThumbnail(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap.getWidth() <= mIconSize && bitmap.getHeight() <= mIconSize) {
+                return bitmap;
+            }
+        }
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        } else if (width > mIconSize || height > mIconSize) {
+            final float ratio = (float) width / height;
+            if (width > height) {
+                width = mIconSize;
+                height = (int) (mIconSize / ratio);
+            } else {
+                height = mIconSize;
+                width = (int) (mIconSize * ratio);
+            }
+        }
+        final Bitmap thumb = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(thumb);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        return thumb;
+    }
+
+    /**
+     * Writes the thumbnail to disk, deleting any thumbnail kept for an
+     * older version of the same package.  Runs on the writer thread.
+     */
+    private void writeThumbnail(String key, String prefix, Bitmap bitmap) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            return;
+        }
+        if (mDiskKeys == null) {
+            mDiskKeys = listDiskKeys();
+        }
+        final String oldKey = mDiskKeys.get(prefix);
+        if (key.equals(oldKey)) {
+            // Already written by an earlier request.
+            return;
+        }
+
+        final File file = new File(mDir, key + ".png");
+        final File temp = new File(mDir, key + ".png" + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(temp);
+            written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write icon " + key, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written || !temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+
+        if (oldKey != null) {
+            new File(mDir, oldKey + ".png").delete();
+        }
+        mDiskKeys.put(prefix, key);
+    }
+
+    /**
+     * Lists the thumbnails on disk by package or activity, dropping
+     * unfinished writes.
+     */
+    private HashMap<String, String> listDiskKeys() {
+        final HashMap<String, String> keys = new HashMap<String, String>();
+        final String[] names = mDir.list();
+        if (names == null) {
+            return keys;
+        }
+        for (String name : names) {
+            final int at = name.lastIndexOf('@');
+            if (name.endsWith(TEMP_SUFFIX) || at < 0 || !name.endsWith(".png")) {
+                new File(mDir, name).delete();
+                continue;
+            }
+            final String key = name.substring(0, name.length() - ".png".length());
+            final String oldKey = keys.put(name.substring(0, at), key);
+            if (oldKey != null) {
+                // Only one version of each icon is kept.
+                new File(mDir, oldKey + ".png").delete();
+            }
+        }
+        return keys;
+    }
+}
@@ -36,8 +36,6 @@ import static android.net.NetworkTemplate.buildTemplateMobile3gLower;
 import static android.net.NetworkTemplate.buildTemplateMobile4g;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifi;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
 import static android.text.format.Time.TIMEZONE_UTC;
@@ -53,10 +51,12 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -69,7 +69,6 @@ import android.net.INetworkPolicyManager;
 import android.net.INetworkStatsService;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.AsyncTask;
@@ -85,7 +84,6 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -119,9 +117,11 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.Phone;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageItem;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.PolicySnapshot;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -132,8 +132,6 @@ import com.android.settings.widget.PieChartView;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -240,6 +238,12 @@ public class DataUsageSummary extends Fragment {
 
     private NetworkPolicyEditor mPolicyEditor;
 
+    /**
+     * Policy state refreshed off the main thread on each resume; until it
+     * arrives, policy reads go to the services directly.
+     */
+    private PolicySnapshot mPolicySnapshot;
+
     private String mCurrentTab = null;
     private String mIntentTab = null;
 
@@ -266,8 +270,8 @@ public class DataUsageSummary extends Fragment {
 
         mPrefs = getActivity().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
 
+        // stays empty until the first policy snapshot is loaded
         mPolicyEditor = new NetworkPolicyEditor(mPolicyService);
-        mPolicyEditor.read();
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
         mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
@@ -400,6 +404,16 @@ public class DataUsageSummary extends Fragment {
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
 
+        // refresh policy snapshot, and again whenever policy may change
+        loadPolicySnapshot();
+        final IntentFilter filter = new IntentFilter(
+                ConnectivityManager.ACTION_BACKGROUND_DATA_SETTING_CHANGED);
+        getActivity().registerReceiver(mPolicyReceiver, filter);
+        final IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        getActivity().registerReceiver(mPolicyReceiver, packageFilter);
+
         // kick off background task to update stats
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -423,6 +437,62 @@ public class DataUsageSummary extends Fragment {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        getActivity().unregisterReceiver(mPolicyReceiver);
+    }
+
+    private final BroadcastReceiver mPolicyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            loadPolicySnapshot();
+        }
+    };
+
+    /**
+     * Load a fresh {@link PolicySnapshot} in the background, queued behind any
+     * pending policy writes, and rebind policy state once loaded. Snapshots
+     * that may miss changes made while loading are dropped and loaded again.
+     */
+    private void loadPolicySnapshot() {
+        final PolicySnapshot previous = mPolicySnapshot;
+        final int previousWrites = previous != null ? previous.getWriteCount() : 0;
+        final int appUid = isAppDetailMode() ? getAppDetailPrimaryUid() : -1;
+        new AsyncTask<Void, Void, PolicySnapshot>() {
+            @Override
+            protected PolicySnapshot doInBackground(Void... params) {
+                return PolicySnapshot.load(mPolicyService, mNetworkService, appUid);
+            }
+
+            @Override
+            protected void onPostExecute(PolicySnapshot result) {
+                if (!isAdded()) return;
+                if (mPolicySnapshot != previous
+                        || (previous != null && previous.getWriteCount() != previousWrites)) {
+                    // policy changed after this load started; the next load
+                    // is queued behind those writes
+                    loadPolicySnapshot();
+                    return;
+                }
+                final boolean wasSplit = isMobilePolicySplit();
+                mPolicySnapshot = result;
+                mPolicyEditor = result.getEditor();
+                if (isMobilePolicySplit() != wasSplit) {
+                    // tabs depend on split mobile policy
+                    updateTabs();
+                } else if (mTemplate != null) {
+                    // cycles are derived from the policy just loaded
+                    updatePolicy(true);
+                    if (isAppDetailMode()) {
+                        updateAppDetail();
+                    }
+                }
+                getActivity().invalidateOptionsMenu();
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -439,10 +509,13 @@ public class DataUsageSummary extends Fragment {
 
         mMenuRestrictBackground = menu.findItem(R.id.data_usage_menu_restrict_background);
         mMenuRestrictBackground.setVisible(hasMobileRadio(context) && !appDetailMode);
+        // limited networks are only known once policy is loaded
+        mMenuRestrictBackground.setEnabled(mPolicySnapshot != null);
         mMenuRestrictBackground.setChecked(getRestrictBackground());
 
         final MenuItem split4g = menu.findItem(R.id.data_usage_menu_split_4g);
-        split4g.setVisible(hasMobile4gRadio(context) && !appDetailMode);
+        split4g.setVisible(hasMobile4gRadio(context) && !appDetailMode
+                && mPolicySnapshot != null);
         split4g.setChecked(isMobilePolicySplit());
 
         final MenuItem showWifi = menu.findItem(R.id.data_usage_menu_show_wifi);
@@ -484,6 +557,10 @@ public class DataUsageSummary extends Fragment {
             case R.id.data_usage_menu_restrict_background: {
                 final boolean restrictBackground = !item.isChecked();
                 if (restrictBackground) {
+                    if (mPolicySnapshot == null) {
+                        // limited networks aren't known until policy loads
+                        return true;
+                    }
                     if (hasLimitedNetworks()) {
                         ConfirmRestrictFragment.show(this);
                     } else {
@@ -838,6 +915,9 @@ public class DataUsageSummary extends Fragment {
     }
 
     private boolean isBandwidthControlEnabled() {
+        if (mPolicySnapshot != null) {
+            return mPolicySnapshot.isBandwidthControlEnabled();
+        }
         try {
             return mNetworkService.isBandwidthControlEnabled();
         } catch (RemoteException e) {
@@ -860,6 +940,9 @@ public class DataUsageSummary extends Fragment {
     }
 
     private boolean getRestrictBackground() {
+        if (mPolicySnapshot != null) {
+            return mPolicySnapshot.getRestrictBackground();
+        }
         try {
             return mPolicyService.getRestrictBackground();
         } catch (RemoteException e) {
@@ -870,6 +953,11 @@ public class DataUsageSummary extends Fragment {
 
     private void setRestrictBackground(boolean restrictBackground) {
         if (LOGD) Log.d(TAG, "setRestrictBackground()");
+        if (mPolicySnapshot != null) {
+            mPolicySnapshot.setRestrictBackground(restrictBackground);
+            mMenuRestrictBackground.setChecked(restrictBackground);
+            return;
+        }
         try {
             mPolicyService.setRestrictBackground(restrictBackground);
             mMenuRestrictBackground.setChecked(restrictBackground);
@@ -880,6 +968,10 @@ public class DataUsageSummary extends Fragment {
 
     private boolean getAppRestrictBackground() {
         final int primaryUid = getAppDetailPrimaryUid();
+        if (mPolicySnapshot != null) {
+            return mPolicySnapshot.getAppRestrictBackground(primaryUid);
+        }
+
         final int uidPolicy;
         try {
             uidPolicy = mPolicyService.getUidPolicy(primaryUid);
@@ -894,6 +986,11 @@ public class DataUsageSummary extends Fragment {
     private void setAppRestrictBackground(boolean restrictBackground) {
         if (LOGD) Log.d(TAG, "setAppRestrictBackground()");
         final int primaryUid = getAppDetailPrimaryUid();
+        if (mPolicySnapshot != null) {
+            mPolicySnapshot.setAppRestrictBackground(primaryUid, restrictBackground);
+            mAppRestrict.setChecked(restrictBackground);
+            return;
+        }
         try {
             mPolicyService.setUidPolicy(primaryUid,
                     restrictBackground ? POLICY_REJECT_METERED_BACKGROUND : POLICY_NONE);
@@ -1056,6 +1153,10 @@ public class DataUsageSummary extends Fragment {
             final boolean restrictBackground = !mAppRestrict.isChecked();
 
             if (restrictBackground) {
+                if (mPolicySnapshot == null) {
+                    // limited networks aren't known until policy loads
+                    return;
+                }
                 if (hasLimitedNetworks()) {
                     // enabling restriction; show confirmation dialog which
                     // eventually calls setRestrictBackground() once user
@@ -1140,9 +1241,9 @@ public class DataUsageSummary extends Fragment {
         NetworkStatsHistory.Entry entry = null;
         if (isAppDetailMode() && mChartData != null && mChartData.detail != null) {
             // bind foreground/background to piechart and labels
-            entry = mChartData.detailDefault.getValues(start, end, now, entry);
+            entry = mChartData.detailDefaultIndex.getValues(start, end, now, entry);
             final long defaultBytes = entry.rxBytes + entry.txBytes;
-            entry = mChartData.detailForeground.getValues(start, end, now, entry);
+            entry = mChartData.detailForegroundIndex.getValues(start, end, now, entry);
             final long foregroundBytes = entry.rxBytes + entry.txBytes;
 
             mAppPieChart.setOriginAngle(175);
@@ -1157,13 +1258,13 @@ public class DataUsageSummary extends Fragment {
             mAppForeground.setText(Formatter.formatFileSize(context, foregroundBytes));
 
             // and finally leave with summary data for label below
-            entry = mChartData.detail.getValues(start, end, now, null);
+            entry = mChartData.detailIndex.getValues(start, end, now, null);
 
             getLoaderManager().destroyLoader(LOADER_SUMMARY);
 
         } else {
             if (mChartData != null) {
-                entry = mChartData.network.getValues(start, end, now, null);
+                entry = mChartData.networkIndex.getValues(start, end, now, null);
             }
 
             // kick off loader for detailed stats
@@ -1189,8 +1290,8 @@ public class DataUsageSummary extends Fragment {
         /** {@inheritDoc} */
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
             mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
-            mChart.bindDetailNetworkStats(mChartData.detail);
+            mChart.bindNetworkStats(mChartData.network, mChartData.networkIndex);
+            mChart.bindDetailNetworkStats(mChartData.detail, mChartData.detailIndex);
 
             // calcuate policy cycles based on available data
             updatePolicy(true);
@@ -1210,22 +1311,23 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<ArrayList<AppUsageItem>> mSummaryCallbacks =
+            new LoaderCallbacks<ArrayList<AppUsageItem>>() {
         /** {@inheritDoc} */
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<ArrayList<AppUsageItem>> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsService, args);
         }
 
         /** {@inheritDoc} */
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            mAdapter.bindStats(data);
+        public void onLoadFinished(
+                Loader<ArrayList<AppUsageItem>> loader, ArrayList<AppUsageItem> data) {
+            mAdapter.bindItems(data);
             updateEmptyVisible();
         }
 
         /** {@inheritDoc} */
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null);
+        public void onLoaderReset(Loader<ArrayList<AppUsageItem>> loader) {
+            mAdapter.bindItems(null);
             updateEmptyVisible();
         }
 
@@ -1396,31 +1498,11 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    private static class AppUsageItem implements Comparable<AppUsageItem> {
-        public int[] uids;
-        public long total;
-
-        public AppUsageItem(int uid) {
-            uids = new int[] { uid };
-        }
-
-        public void addUid(int uid) {
-            if (contains(uids, uid)) return;
-            final int length = uids.length;
-            uids = Arrays.copyOf(uids, length + 1);
-            uids[length] = uid;
-        }
-
-        /** {@inheritDoc} */
-        public int compareTo(AppUsageItem another) {
-            return Long.compare(another.total, total);
-        }
-    }
-
     /**
      * Adapter of applications, sorted by total usage descending.
      */
-    public static class DataUsageAdapter extends BaseAdapter {
+    public static class DataUsageAdapter extends BaseAdapter
+            implements UidDetailProvider.Callback {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
@@ -1433,43 +1515,28 @@ public class DataUsageSummary extends Fragment {
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given list of {@link AppUsageItem}, already sorted by
+         * total descending, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats) {
-            mItems.clear();
-
-            final AppUsageItem systemItem = new AppUsageItem(android.os.Process.SYSTEM_UID);
-            final SparseArray<AppUsageItem> knownUids = new SparseArray<AppUsageItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                final int uid = entry.uid;
-                final boolean isApp = uid >= android.os.Process.FIRST_APPLICATION_UID
-                        && uid <= android.os.Process.LAST_APPLICATION_UID;
-                if (isApp || uid == UID_REMOVED || uid == UID_TETHERING) {
-                    AppUsageItem item = knownUids.get(uid);
-                    if (item == null) {
-                        item = new AppUsageItem(uid);
-                        knownUids.put(uid, item);
-                        mItems.add(item);
-                    }
+        public void bindItems(ArrayList<AppUsageItem> items) {
+            mItems = items != null ? items : new ArrayList<AppUsageItem>();
+            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            notifyDataSetChanged();
 
-                    item.total += entry.rxBytes + entry.txBytes;
-                } else {
-                    systemItem.total += entry.rxBytes + entry.txBytes;
-                    systemItem.addUid(uid);
+            // prefetch details for the whole list in one pass
+            final int count = mItems.size();
+            if (count > 0) {
+                final int[] uids = new int[count];
+                for (int i = 0; i < count; i++) {
+                    uids[i] = mItems.get(i).uids[0];
                 }
+                mProvider.resolveAll(uids, this);
             }
+        }
 
-            if (systemItem.total > 0) {
-                mItems.add(systemItem);
-            }
-
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+        @Override
+        public void onUidDetailsResolved(int[] uids) {
+            // rebind any rows still waiting on their details
             notifyDataSetChanged();
         }
 
@@ -2221,13 +2288,4 @@ public class DataUsageSummary extends Fragment {
         summary.setVisibility(View.VISIBLE);
         summary.setText(string);
     }
-
-    private static boolean contains(int[] haystack, int needle) {
-        for (int value : haystack) {
-            if (value == needle) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.internal.util.MemInfoReader;
+
+import android.app.ActivityManager;
+import android.app.ActivityManagerNative;
+import android.os.RemoteException;
+
+import java.util.List;
+
+/**
+ * Process information straight from the activity manager.  Process memory
+ * is the proportional set size, which is accurate but takes a binder call
+ * that walks the memory maps of every process.
+ */
+class ActivityManagerProcessInfoSource implements ProcessInfoSource {
+    final ActivityManager mAm;
+    final MemInfoReader mMemInfoReader = new MemInfoReader();
+
+    ActivityManagerProcessInfoSource(ActivityManager am) {
+        mAm = am;
+    }
+
+    @Override
+    public List<ActivityManager.RunningServiceInfo> getRunningServices(int maxNum) {
+        return mAm.getRunningServices(maxNum);
+    }
+
+    @Override
+    public List<ActivityManager.RunningAppProcessInfo> getRunningAppProcesses() {
+        return mAm.getRunningAppProcesses();
+    }
+
+    @Override
+    public boolean getProcessMemory(int[] pids, long[] outSizes) {
+        try {
+            long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+            System.arraycopy(pss, 0, outSizes, 0, pids.length);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void readMemInfo(MemInfo outInfo) {
+        mMemInfoReader.readMemInfo();
+        outInfo.totalSize = mMemInfoReader.getTotalSize();
+        outInfo.freeSize = mMemInfoReader.getFreeSize();
+        outInfo.cachedSize = mMemInfoReader.getCachedSize();
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Index over the normalized labels of a fixed list of app entries, used to
+ * answer type-to-filter queries without scanning every label.  Short
+ * queries match the start of any word; longer ones match anywhere in the
+ * label, found through the trigrams of the labels.  Results are always
+ * returned in the order of the indexed list.  Built on the rebuild thread,
+ * along with the list it indexes.
+ */
+class AppEntryPrefixIndex {
+    // Queries at least this long match anywhere in a label.
+    static final int MIN_INFIX_LENGTH = 3;
+
+    final ArrayList<AppEntry> mEntries;
+    // Normalized labels as of building, by entry index.
+    final String[] mLabels;
+
+    // Every suffix of every label that starts at a word boundary, as the
+    // index of the entry and the offset in its label, sorted by text.
+    final int[] mSuffixOwners;
+    final int[] mSuffixOffsets;
+
+    // Every three character sequence of the labels, packed into a long and
+    // sorted.  The ascending indices of the entries containing trigram i
+    // are mTrigramOwners[mTrigramStarts[i]] up to mTrigramStarts[i+1].
+    final long[] mTrigrams;
+    final int[] mTrigramStarts;
+    final int[] mTrigramOwners;
+
+    // The previous query and its result, so that typing one more
+    // character only has to re-check the entries that matched before.
+    private String mLastQuery;
+    private boolean mLastInfix;
+    private int[] mLastResult;
+
+    AppEntryPrefixIndex(ArrayList<AppEntry> entries) {
+        mEntries = entries;
+        final int N = entries.size();
+        final String[] labels = new String[N];
+        mLabels = labels;
+
+        int suffixCount = 0;
+        int trigramCount = 0;
+        for (int i=0; i<N; i++) {
+            String nlabel = entries.get(i).getNormalizedLabel();
+            labels[i] = nlabel;
+            for (int off=0; off<nlabel.length(); off++) {
+                if (off == 0 || nlabel.charAt(off-1) == ' ') {
+                    suffixCount++;
+                }
+            }
+            if (nlabel.length() >= 3) {
+                trigramCount += nlabel.length() - 2;
+            }
+        }
+
+        final int[] owners = new int[suffixCount];
+        final int[] offsets = new int[suffixCount];
+        final long[] trigrams = new long[trigramCount];
+        final int[] trigramOwners = new int[trigramCount];
+        for (int i=0, s=0, t=0; i<N; i++) {
+            String nlabel = labels[i];
+            for (int off=0; off<nlabel.length(); off++) {
+                if (off == 0 || nlabel.charAt(off-1) == ' ') {
+                    owners[s] = i;
+                    offsets[s++] = off;
+                }
+                if (off + 3 <= nlabel.length()) {
+                    trigrams[t] = trigram(nlabel, off);
+                    trigramOwners[t++] = i;
+                }
+            }
+        }
+
+        int[] order = new IndexSorter() {
+            @Override
+            int compare(int a, int b) {
+                return compareSuffixes(labels[owners[a]], offsets[a],
+                        labels[owners[b]], offsets[b]);
+            }
+        }.sort(suffixCount);
+        mSuffixOwners = new int[suffixCount];
+        mSuffixOffsets = new int[suffixCount];
+        for (int i=0; i<suffixCount; i++) {
+            mSuffixOwners[i] = owners[order[i]];
+            mSuffixOffsets[i] = offsets[order[i]];
+        }
+
+        // The sort is stable, so owners stay ascending within a trigram.
+        order = new IndexSorter() {
+            @Override
+            int compare(int a, int b) {
+                return trigrams[a] < trigrams[b] ? -1 : (trigrams[a] > trigrams[b] ? 1 : 0);
+            }
+        }.sort(trigramCount);
+        int unique = 0;
+        int ownerCount = 0;
+        for (int i=0; i<trigramCount; i++) {
+            if (i == 0 || trigrams[order[i]] != trigrams[order[i-1]]) {
+                unique++;
+                ownerCount++;
+            } else if (trigramOwners[order[i]] != trigramOwners[order[i-1]]) {
+                ownerCount++;
+            }
+        }
+        mTrigrams = new long[unique];
+        mTrigramStarts = new int[unique + 1];
+        mTrigramOwners = new int[ownerCount];
+        for (int i=0, u=-1, o=0; i<trigramCount; i++) {
+            final long tri = trigrams[order[i]];
+            final int owner = trigramOwners[order[i]];
+            if (u < 0 || tri != mTrigrams[u]) {
+                mTrigrams[++u] = tri;
+                mTrigramStarts[u] = o;
+                mTrigramOwners[o++] = owner;
+            } else if (owner != mTrigramOwners[o-1]) {
+                mTrigramOwners[o++] = owner;
+            }
+        }
+        mTrigramStarts[unique] = ownerCount;
+    }
+
+    /**
+     * Returns true if some word of the normalized label, together with
+     * whatever follows it, starts with the given normalized prefix.
+     */
+    static boolean matchesWordPrefix(String nlabel, String prefix) {
+        return nlabel.startsWith(prefix) || nlabel.indexOf(" " + prefix) != -1;
+    }
+
+    /**
+     * Returns true if the normalized label matches the normalized query the
+     * way {@link #find} does.
+     */
+    static boolean matches(String nlabel, String query) {
+        return query.length() >= MIN_INFIX_LENGTH
+                ? nlabel.indexOf(query) != -1 : matchesWordPrefix(nlabel, query);
+    }
+
+    /**
+     * Returns the entries matching the given normalized query: anywhere in
+     * the label if it is long enough, at the start of a word otherwise.
+     */
+    ArrayList<AppEntry> find(String query) {
+        return query.length() >= MIN_INFIX_LENGTH ? findContaining(query) : findWordPrefix(query);
+    }
+
+    /**
+     * Returns the entries with a word starting with the given normalized
+     * prefix.
+     */
+    synchronized ArrayList<AppEntry> findWordPrefix(String prefix) {
+        int[] result;
+        if (canNarrow(prefix, false)) {
+            result = filter(mLastResult, prefix, false);
+        } else {
+            boolean[] matched = new boolean[mEntries.size()];
+            int count = 0;
+            for (int i=lowerBound(prefix); i<mSuffixOwners.length
+                    && mLabels[mSuffixOwners[i]].startsWith(prefix, mSuffixOffsets[i]); i++) {
+                if (!matched[mSuffixOwners[i]]) {
+                    matched[mSuffixOwners[i]] = true;
+                    count++;
+                }
+            }
+            result = new int[count];
+            for (int i=0, j=0; j<count; i++) {
+                if (matched[i]) {
+                    result[j++] = i;
+                }
+            }
+        }
+        return remember(prefix, false, result);
+    }
+
+    /**
+     * Returns the entries whose normalized label contains the given
+     * normalized text anywhere.
+     */
+    synchronized ArrayList<AppEntry> findContaining(String text) {
+        int[] result;
+        if (canNarrow(text, true)) {
+            result = filter(mLastResult, text, true);
+        } else if (text.length() < 3) {
+            result = filter(null, text, true);
+        } else {
+            int[] candidates = null;
+            for (int off=0; off+3<=text.length(); off++) {
+                int t = Arrays.binarySearch(mTrigrams, trigram(text, off));
+                if (t < 0) {
+                    candidates = new int[0];
+                    break;
+                }
+                int[] owners = Arrays.copyOfRange(mTrigramOwners,
+                        mTrigramStarts[t], mTrigramStarts[t+1]);
+                candidates = candidates == null ? owners : intersect(candidates, owners);
+            }
+            // Trigrams can match in different places, so check the text.
+            result = filter(candidates, text, true);
+        }
+        return remember(text, true, result);
+    }
+
+    private boolean canNarrow(String query, boolean infix) {
+        return mLastQuery != null && mLastInfix == infix && query.startsWith(mLastQuery);
+    }
+
+    /**
+     * Checks each candidate (or every entry if null) against the query
+     * directly.
+     */
+    private int[] filter(int[] candidates, String query, boolean infix) {
+        final int N = candidates != null ? candidates.length : mLabels.length;
+        int[] out = new int[N];
+        int count = 0;
+        for (int i=0; i<N; i++) {
+            int idx = candidates != null ? candidates[i] : i;
+            String nlabel = mLabels[idx];
+            if (infix ? nlabel.indexOf(query) != -1 : matchesWordPrefix(nlabel, query)) {
+                out[count++] = idx;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private ArrayList<AppEntry> remember(String query, boolean infix, int[] result) {
+        mLastQuery = query;
+        mLastInfix = infix;
+        mLastResult = result;
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(result.length);
+        for (int i=0; i<result.length; i++) {
+            entries.add(mEntries.get(result[i]));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the position of the first suffix not sorting before the
+     * prefix, so the suffixes starting with it follow from there.
+     */
+    private int lowerBound(String prefix) {
+        int lo = 0, hi = mSuffixOwners.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mLabels[mSuffixOwners[mid]], mSuffixOffsets[mid], prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compares the text of a starting at aOff with the text of b starting
+     * at bOff, as {@link String#compareTo} would.
+     */
+    static int compareSuffixes(String a, int aOff, String b, int bOff) {
+        final int aLen = a.length() - aOff;
+        final int bLen = b.length() - bOff;
+        final int len = Math.min(aLen, bLen);
+        for (int i=0; i<len; i++) {
+            int diff = a.charAt(aOff + i) - b.charAt(bOff + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    /**
+     * Compares the text of label starting at off, cut to the length of the
+     * prefix, with the prefix.  Zero means the text starts with the prefix.
+     */
+    private static int comparePrefix(String label, int off, String prefix) {
+        final int labelLen = label.length() - off;
+        final int len = Math.min(labelLen, prefix.length());
+        for (int i=0; i<len; i++) {
+            int diff = label.charAt(off + i) - prefix.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return labelLen < prefix.length() ? -1 : 0;
+    }
+
+    private static long trigram(String text, int off) {
+        return ((long) text.charAt(off) << 32) | ((long) text.charAt(off + 1) << 16)
+                | text.charAt(off + 2);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i=0, j=0; i<a.length && j<b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Stable merge sort of the indices 0 to n-1, comparing through
+     * {@link #compare} so that nothing is boxed or copied per element.
+     */
+    private static abstract class IndexSorter {
+        abstract int compare(int a, int b);
+
+        int[] sort(int n) {
+            int[] src = new int[n];
+            int[] dst = new int[n];
+            for (int i=0; i<n; i++) {
+                src[i] = i;
+            }
+            for (int width=1; width<n; width*=2) {
+                for (int lo=0; lo<n; lo+=2*width) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + 2*width, n);
+                    int i = lo, j = mid, k = lo;
+                    while (i < mid && j < hi) {
+                        dst[k++] = compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+                    }
+                    while (i < mid) dst[k++] = src[i++];
+                    while (j < hi) dst[k++] = src[j++];
+                }
+                int[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+            return src;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Versioned on-disk snapshot of the labels and sizes held by
+ * {@link ApplicationsState.AppEntry}, so that a cold start can serve the
+ * first rebuild without loading every label and size again.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_entries.snapshot";
+    private static final int MAGIC = 0x41505053;
+    private static final int VERSION = 1;
+
+    static class Record {
+        String packageName;
+        String label;
+        String normalizedLabel;
+        long lastUpdateTime;
+        int flags;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long size;
+        long internalSize;
+        long externalSize;
+
+        /**
+         * Returns true if this record still describes the given package,
+         * i.e. neither its apk nor its flags changed since it was written.
+         */
+        boolean matches(ApplicationInfo info, File apkFile) {
+            return flags == info.flags && lastUpdateTime == apkFile.lastModified();
+        }
+    }
+
+    final File mFile;
+
+    AppEntrySnapshot(Context context) {
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Maps the snapshot back into memory.  Returns null if there is no
+     * snapshot, or if it was written by another version or for another
+     * locale.
+     */
+    HashMap<String, Record> read(String locale) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot of unknown version");
+                return null;
+            }
+            if (!locale.equals(readString(buf))) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot of other locale");
+                return null;
+            }
+            final int count = buf.getInt();
+            HashMap<String, Record> records = new HashMap<String, Record>(count);
+            for (int i=0; i<count; i++) {
+                Record rec = new Record();
+                rec.packageName = readString(buf);
+                rec.label = readString(buf);
+                rec.normalizedLabel = readString(buf);
+                rec.lastUpdateTime = buf.getLong();
+                rec.flags = buf.getInt();
+                rec.cacheSize = buf.getLong();
+                rec.codeSize = buf.getLong();
+                rec.dataSize = buf.getLong();
+                rec.externalCodeSize = buf.getLong();
+                rec.externalDataSize = buf.getLong();
+                rec.size = buf.getLong();
+                rec.internalSize = buf.getLong();
+                rec.externalSize = buf.getLong();
+                records.put(rec.packageName, rec);
+            }
+            if (DEBUG) Log.i(TAG, "Read " + count + " entries from snapshot");
+            return records;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated snapshot");
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the snapshot with the given records.  Written to a temporary
+     * file first so a reader never sees a partial snapshot.
+     */
+    void write(String locale, ArrayList<Record> records) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, locale);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record rec = records.get(i);
+                writeString(out, rec.packageName);
+                writeString(out, rec.label);
+                writeString(out, rec.normalizedLabel);
+                out.writeLong(rec.lastUpdateTime);
+                out.writeInt(rec.flags);
+                out.writeLong(rec.cacheSize);
+                out.writeLong(rec.codeSize);
+                out.writeLong(rec.dataSize);
+                out.writeLong(rec.externalCodeSize);
+                out.writeLong(rec.externalDataSize);
+                out.writeLong(rec.size);
+                out.writeLong(rec.internalSize);
+                out.writeLong(rec.externalSize);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace snapshot");
+                tmp.delete();
+            } else if (DEBUG) {
+                Log.i(TAG, "Wrote " + records.size() + " entries to snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        final int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -21,7 +21,10 @@ import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.AppIconCache;
+
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -29,6 +32,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -67,6 +72,10 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Shared by all sort keys so that they compare consistently.  Collator
+    // is not thread safe, so synchronize on it.
+    static final Collator sCollator = Collator.getInstance();
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -82,6 +91,9 @@ public class ApplicationsState {
         long size;
         long internalSize;
         long externalSize;
+        // Modification time of the apk, which changes whenever the
+        // package is updated.
+        long lastUpdateTime;
 
         boolean mounted;
         
@@ -93,6 +105,22 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
+        /**
+         * Collation key of the label, built on first use so that sorting
+         * compares bytes instead of running the collator every time.
+         */
+        CollationKey getLabelKey() {
+            CollationKey key = labelKey;
+            if (key == null) {
+                String curLabel = label;
+                synchronized (sCollator) {
+                    key = sCollator.getCollationKey(curLabel);
+                }
+                labelKey = key;
+            }
+            return key;
+        }
+
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
         Drawable icon;
@@ -103,6 +131,7 @@ public class ApplicationsState {
         long sizeLoadStart;
 
         String normalizedLabel;
+        volatile CollationKey labelKey;
 
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
@@ -111,10 +140,32 @@ public class ApplicationsState {
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
             ensureLabel(context);
+            this.lastUpdateTime = apkFile.lastModified();
+        }
+
+        AppEntry(ApplicationInfo info, long id, AppEntrySnapshot.Record record) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.mounted = true;
+            this.label = record.label;
+            this.normalizedLabel = record.normalizedLabel;
+            this.lastUpdateTime = record.lastUpdateTime;
+            this.cacheSize = record.cacheSize;
+            this.codeSize = record.codeSize;
+            this.dataSize = record.dataSize;
+            this.externalCodeSize = record.externalCodeSize;
+            this.externalDataSize = record.externalDataSize;
+            this.size = record.size;
+            this.internalSize = record.internalSize;
+            this.externalSize = record.externalSize;
+            // Shown until the size is computed again.
+            this.sizeStale = true;
         }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                String oldLabel = this.label;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -123,13 +174,17 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                if (!this.label.equals(oldLabel)) {
+                    this.normalizedLabel = null;
+                    this.labelKey = null;
+                }
             }
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -141,7 +196,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 }
             }
@@ -149,47 +204,96 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Describes how a rebuilt list differs from the list produced by the
+     * rebuild before it.  Entries whose position changed show up in both
+     * {@link #removed} and {@link #added}.
+     */
+    public static class RebuildDelta {
+        final ArrayList<AppEntry> previous;
+        final ArrayList<AppEntry> current;
+        final Comparator<AppEntry> comparator;
+        final ArrayList<AppEntry> added = new ArrayList<AppEntry>();
+        final ArrayList<AppEntry> removed = new ArrayList<AppEntry>();
+
+        RebuildDelta(ArrayList<AppEntry> previous, ArrayList<AppEntry> current,
+                Comparator<AppEntry> comparator) {
+            this.previous = previous;
+            this.current = current;
+            this.comparator = comparator;
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * How long package size computation takes, for tuning the size request
+     * window.  Times are in milliseconds.
+     */
+    public static class SizeTimings {
+        final HashMap<String, Long> packageLatency = new HashMap<String, Long>();
+        long sweepStart;
+        long lastSweepDuration;
+        int requestCount;
+        long totalLatency;
+        long maxLatency;
+
+        SizeTimings() {
+        }
+
+        SizeTimings(SizeTimings other) {
+            packageLatency.putAll(other.packageLatency);
+            sweepStart = other.sweepStart;
+            lastSweepDuration = other.lastSweepDuration;
+            requestCount = other.requestCount;
+            totalLatency = other.totalLatency;
+            maxLatency = other.maxLatency;
+        }
+
+        long getAverageLatency() {
+            return requestCount > 0 ? totalLatency / requestCount : 0;
+        }
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.info.enabled != object2.info.enabled) {
                 return object1.info.enabled ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
@@ -236,7 +340,22 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+
+    // Packages whose size has been requested but not yet reported, at most
+    // mSizeRequestWindow of them.  Packages in mSizePriorityPackages (the
+    // ones on screen) are requested first.  Synchronize on mEntriesMap.
+    static final int DEFAULT_SIZE_REQUEST_WINDOW = 4;
+    final HashSet<String> mSizeRequests = new HashSet<String>();
+    int mSizeRequestWindow = DEFAULT_SIZE_REQUEST_WINDOW;
+    ArrayList<String> mSizePriorityPackages = new ArrayList<String>();
+    final SizeTimings mSizeTimings = new SizeTimings();
+
+    // Entries restored from the on-disk snapshot, consumed as the
+    // matching AppEntry objects are created.  Synchronize on mEntriesMap.
+    final AppEntrySnapshot mSnapshot;
+    HashMap<String, AppEntrySnapshot.Record> mSnapshotRecords;
+    boolean mSnapshotNeeded;
+    boolean mSnapshotDirty;
 
     // Rebuilding of app list.  Synchronized on mRebuildSync.
     final Object mRebuildSync = new Object();
@@ -246,6 +365,25 @@ public class ApplicationsState {
     Comparator<AppEntry> mRebuildComparator;
     ArrayList<AppEntry> mRebuildResult;
 
+    // Beyond this many changed packages a delta costs more than a full
+    // filter and sort.
+    static final int MAX_DELTA_PACKAGES = 32;
+
+    // Packages added, removed or resized since the last rebuild, and
+    // whether the last rebuild can be patched with them at all.
+    // Synchronize on mEntriesMap.
+    final HashSet<String> mChangedPackages = new HashSet<String>();
+    boolean mFullRebuildNeeded = true;
+
+    // The last rebuilt list and what it was built with.  Only touched
+    // on the background thread, except mLastRebuildDelta and
+    // mLastPrefixIndex.
+    AppFilter mLastRebuildFilter;
+    Comparator<AppEntry> mLastRebuildComparator;
+    ArrayList<AppEntry> mLastRebuildList;
+    volatile RebuildDelta mLastRebuildDelta;
+    volatile AppEntryPrefixIndex mLastPrefixIndex;
+
     /**
      * Receives notifications when applications are added/removed.
      */
@@ -364,6 +502,7 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new AppEntrySnapshot(mContext);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -418,6 +557,13 @@ public class ApplicationsState {
                 }
             }
 
+            if (mEntriesMap.isEmpty()) {
+                // Cold start: serve entries from the last snapshot where the
+                // package has not been updated since it was written.  It is
+                // read on the background thread, before anything else.
+                mSnapshotNeeded = true;
+            }
+
             for (int i=0; i<mApplications.size(); i++) {
                 final ApplicationInfo info = mApplications.get(i);
                 // Need to trim out any applications that are disabled by
@@ -433,7 +579,8 @@ public class ApplicationsState {
                     entry.info = info;
                 }
             }
-            mCurComputingSizePkg = null;
+            mSizeRequests.clear();
+            mFullRebuildNeeded = true;
             if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                 mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
             }
@@ -502,7 +649,59 @@ public class ApplicationsState {
         if (filter != null) {
             filter.init();
         }
-        
+
+        ArrayList<AppEntry> filteredApps = null;
+        RebuildDelta delta = null;
+        synchronized (mEntriesMap) {
+            if (!mFullRebuildNeeded && mLastRebuildList != null
+                    && filter == mLastRebuildFilter && comparator == mLastRebuildComparator
+                    && mChangedPackages.size() <= MAX_DELTA_PACKAGES) {
+                // Sizes only change with mEntriesMap held, so the list stays
+                // sorted while the changes are applied.
+                if (DEBUG) Log.i(TAG, "Applying " + mChangedPackages.size()
+                        + " changes to last list...");
+                filteredApps = new ArrayList<AppEntry>(mLastRebuildList);
+                delta = new RebuildDelta(mLastRebuildList, filteredApps, comparator);
+                applyRebuildChangesLocked(mChangedPackages, filter, comparator, filteredApps,
+                        delta);
+            }
+            mChangedPackages.clear();
+            mFullRebuildNeeded = false;
+        }
+
+        if (filteredApps == null) {
+            filteredApps = buildFullList(filter, comparator);
+        }
+        mLastRebuildFilter = filter;
+        mLastRebuildComparator = comparator;
+        mLastRebuildList = filteredApps;
+        mLastRebuildDelta = delta;
+        // Index the labels here so that filtering never has to on the UI
+        // thread.
+        mLastPrefixIndex = new AppEntryPrefixIndex(filteredApps);
+
+        synchronized (mRebuildSync) {
+            if (!mRebuildRequested) {
+                if (!mRebuildAsync) {
+                    mRebuildResult = filteredApps;
+                    mRebuildSync.notifyAll();
+                } else {
+                    // Replace any result not yet delivered; the receiver
+                    // then sees a delta it cannot apply and takes the
+                    // whole list instead.
+                    mMainHandler.removeMessages(MainHandler.MSG_REBUILD_COMPLETE);
+                    Message msg = mMainHandler.obtainMessage(
+                            MainHandler.MSG_REBUILD_COMPLETE, filteredApps);
+                    mMainHandler.sendMessage(msg);
+                }
+            }
+        }
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    // The filter must already be initialized.
+    ArrayList<AppEntry> buildFullList(AppFilter filter, Comparator<AppEntry> comparator) {
         List<ApplicationInfo> apps;
         synchronized (mEntriesMap) {
             apps = new ArrayList<ApplicationInfo>(mApplications);
@@ -525,23 +724,85 @@ public class ApplicationsState {
         }
 
         Collections.sort(filteredApps, comparator);
+        return filteredApps;
+    }
 
-        synchronized (mRebuildSync) {
-            if (!mRebuildRequested) {
-                if (!mRebuildAsync) {
-                    mRebuildResult = filteredApps;
-                    mRebuildSync.notifyAll();
-                } else {
-                    if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE)) {
-                        Message msg = mMainHandler.obtainMessage(
-                                MainHandler.MSG_REBUILD_COMPLETE, filteredApps);
-                        mMainHandler.sendMessage(msg);
-                    }
+    /**
+     * Brings the entries for the given packages in the sorted list up to
+     * date.  Their sort keys may have changed, so every entry the list holds
+     * for them is dropped before the current ones are inserted at their
+     * sorted positions, if they still pass the filter.
+     */
+    void applyRebuildChangesLocked(HashSet<String> changed, AppFilter filter,
+            Comparator<AppEntry> comparator, ArrayList<AppEntry> list, RebuildDelta delta) {
+        HashMap<String, Integer> oldPositions = new HashMap<String, Integer>();
+        ArrayList<AppEntry> oldEntries = new ArrayList<AppEntry>();
+        int dst = 0;
+        for (int i=0; i<list.size(); i++) {
+            AppEntry entry = list.get(i);
+            if (changed.contains(entry.info.packageName)) {
+                oldPositions.put(entry.info.packageName, oldEntries.size());
+                oldEntries.add(entry);
+            } else {
+                list.set(dst++, entry);
+            }
+        }
+        for (int i=list.size()-1; i>=dst; i--) {
+            list.remove(i);
+        }
+
+        ArrayList<AppEntry> newEntries = new ArrayList<AppEntry>();
+        for (String pkgName : changed) {
+            int appIdx = indexOfApplicationInfoLocked(pkgName);
+            if (appIdx < 0) {
+                continue;
+            }
+            ApplicationInfo info = mApplications.get(appIdx);
+            if (filter == null || filter.filterApp(info)) {
+                AppEntry entry = getEntryLocked(info);
+                entry.ensureLabel(mContext);
+                int idx = Collections.binarySearch(list, entry, comparator);
+                list.add(idx < 0 ? -idx - 1 : idx, entry);
+                newEntries.add(entry);
+            }
+        }
+
+        for (int i=0; i<newEntries.size(); i++) {
+            AppEntry entry = newEntries.get(i);
+            Integer oldPos = oldPositions.get(entry.info.packageName);
+            if (oldPos != null) {
+                AppEntry oldEntry = oldEntries.get(oldPos);
+                if (oldEntry == entry && delta.previous.indexOf(entry) == list.indexOf(entry)) {
+                    // Same entry in the same place; nothing for callers to do.
+                    oldEntries.set(oldPos, null);
+                    continue;
                 }
             }
+            delta.added.add(entry);
+        }
+        for (int i=0; i<oldEntries.size(); i++) {
+            if (oldEntries.get(i) != null) {
+                delta.removed.add(oldEntries.get(i));
+            }
         }
+    }
 
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    /**
+     * Returns how the given rebuild result differs from the one before it,
+     * or null if it was built from scratch or is no longer the latest.
+     */
+    RebuildDelta getRebuildDelta(ArrayList<AppEntry> result) {
+        RebuildDelta delta = mLastRebuildDelta;
+        return delta != null && delta.current == result ? delta : null;
+    }
+
+    /**
+     * Returns the label index built along with the given rebuild result,
+     * or null if that result is no longer the latest.
+     */
+    AppEntryPrefixIndex getPrefixIndex(ArrayList<AppEntry> result) {
+        AppEntryPrefixIndex index = mLastPrefixIndex;
+        return index != null && index.mEntries == result ? index : null;
     }
 
     AppEntry getEntry(String packageName) {
@@ -582,6 +843,43 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Tells which packages are currently on screen, so that their sizes are
+     * computed before the rest.
+     */
+    void setSizePriorityPackages(ArrayList<String> packageNames) {
+        synchronized (mEntriesMap) {
+            mSizePriorityPackages = packageNames;
+            if (!mResumed || mSizeRequests.size() >= mSizeRequestWindow
+                    || mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SIZES)) {
+                return;
+            }
+            // Only wake the loader if something on screen still needs a size;
+            // otherwise it would report all sizes computed again.
+            for (int i=0; i<packageNames.size(); i++) {
+                String pkgName = packageNames.get(i);
+                AppEntry entry = mEntriesMap.get(pkgName);
+                if (entry != null && mBackgroundHandler.needsSizeLocked(entry)
+                        && !mSizeRequests.contains(pkgName)) {
+                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+                    break;
+                }
+            }
+        }
+    }
+
+    void setSizeRequestWindow(int window) {
+        synchronized (mEntriesMap) {
+            mSizeRequestWindow = Math.max(1, window);
+        }
+    }
+
+    SizeTimings getSizeTimings() {
+        synchronized (mEntriesMap) {
+            return new SizeTimings(mSizeTimings);
+        }
+    }
+
     long sumCacheSizes() {
         long sum = 0;
         if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
@@ -625,6 +923,7 @@ public class ApplicationsState {
                         PackageManager.GET_UNINSTALLED_PACKAGES |
                         PackageManager.GET_DISABLED_COMPONENTS);
                 mApplications.add(info);
+                mChangedPackages.add(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -648,8 +947,10 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSnapshotDirty = true;
                 }
                 mApplications.remove(idx);
+                mChangedPackages.add(pkgName);
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
@@ -667,8 +968,19 @@ public class ApplicationsState {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            AppEntrySnapshot.Record record = mSnapshotRecords != null
+                    ? mSnapshotRecords.remove(info.packageName) : null;
+            if (record != null && record.matches(info, new File(info.sourceDir))) {
+                if (DEBUG) Log.i(TAG, "Restoring AppEntry for " + info.packageName);
+                entry = new AppEntry(info, mCurId++, record);
+                entry.sizeStr = getSizeStr(entry.size);
+                entry.internalSizeStr = getSizeStr(entry.internalSize);
+                entry.externalSizeStr = getSizeStr(entry.externalSize);
+            } else {
+                if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+                entry = new AppEntry(mContext, info, mCurId++);
+                mSnapshotDirty = true;
+            }
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
         } else if (entry.info != info) {
@@ -677,6 +989,56 @@ public class ApplicationsState {
         return entry;
     }
 
+    /**
+     * Reads the snapshot requested by {@link #resume}, if any.  Called on the
+     * background thread before any entry is created.
+     */
+    void loadSnapshotIfNeeded() {
+        synchronized (mEntriesMap) {
+            if (!mSnapshotNeeded) {
+                return;
+            }
+            mSnapshotNeeded = false;
+        }
+        HashMap<String, AppEntrySnapshot.Record> records = mSnapshot.read(getSnapshotLocale());
+        synchronized (mEntriesMap) {
+            if (mEntriesMap.isEmpty()) {
+                mSnapshotRecords = records;
+            }
+        }
+    }
+
+    String getSnapshotLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    ArrayList<AppEntrySnapshot.Record> buildSnapshotLocked() {
+        ArrayList<AppEntrySnapshot.Record> records
+                = new ArrayList<AppEntrySnapshot.Record>(mAppEntries.size());
+        for (int i=0; i<mAppEntries.size(); i++) {
+            AppEntry entry = mAppEntries.get(i);
+            if (!entry.mounted || entry.size < 0) {
+                continue;
+            }
+            AppEntrySnapshot.Record rec = new AppEntrySnapshot.Record();
+            rec.packageName = entry.info.packageName;
+            rec.label = entry.label;
+            rec.normalizedLabel = entry.getNormalizedLabel();
+            rec.lastUpdateTime = entry.lastUpdateTime;
+            rec.flags = entry.info.flags;
+            rec.cacheSize = entry.cacheSize;
+            rec.codeSize = entry.codeSize;
+            rec.dataSize = entry.dataSize;
+            rec.externalCodeSize = entry.externalCodeSize;
+            rec.externalDataSize = entry.externalDataSize;
+            rec.size = entry.size;
+            rec.internalSize = entry.internalSize;
+            rec.externalSize = entry.externalSize;
+            records.add(rec);
+        }
+        return records;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -719,6 +1081,14 @@ public class ApplicationsState {
                     AppEntry entry = mEntriesMap.get(stats.packageName);
                     if (entry != null) {
                         synchronized (entry) {
+                            if (entry.sizeLoadStart != 0) {
+                                long latency = SystemClock.uptimeMillis() - entry.sizeLoadStart;
+                                mSizeTimings.packageLatency.put(stats.packageName, latency);
+                                mSizeTimings.requestCount++;
+                                mSizeTimings.totalLatency += latency;
+                                mSizeTimings.maxLatency = Math.max(mSizeTimings.maxLatency,
+                                        latency);
+                            }
                             entry.sizeStale = false;
                             entry.sizeLoadStart = 0;
                             long externalCodeSize = stats.externalCodeSize
@@ -747,6 +1117,8 @@ public class ApplicationsState {
                                 if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
+                                mSnapshotDirty = true;
+                                mChangedPackages.add(stats.packageName);
                             }
                         }
                         if (sizeChanged) {
@@ -755,9 +1127,9 @@ public class ApplicationsState {
                             mMainHandler.sendMessage(msg);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    mSizeRequests.remove(stats.packageName);
+                    if (mSizeRequests.size() < mSizeRequestWindow
+                            && !hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -769,8 +1141,39 @@ public class ApplicationsState {
             super(looper);
         }
 
+        boolean needsSizeLocked(AppEntry entry) {
+            return entry.size == SIZE_UNKNOWN || entry.sizeStale;
+        }
+
+        /**
+         * Requests the size of the given entry unless a request for it is
+         * already outstanding.  Requests that have not come back within 20
+         * seconds are assumed lost and sent again.
+         */
+        void startSizeRequestLocked(AppEntry entry, long now) {
+            final String pkgName = entry.info.packageName;
+            if (entry.sizeLoadStart != 0 && entry.sizeLoadStart >= (now-20*1000)) {
+                return;
+            }
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizeTimings.sweepStart == 0) {
+                mSizeTimings.sweepStart = now;
+            }
+            entry.sizeLoadStart = now;
+            mSizeRequests.add(pkgName);
+            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            // Restore from the snapshot before any entry is created.
+            loadSnapshotIfNeeded();
+
             // Always try rebuilding list first thing, if needed.
             handleRebuildList();
 
@@ -800,6 +1203,11 @@ public class ApplicationsState {
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
+                        synchronized (mEntriesMap) {
+                            // Anything left in the snapshot belongs to
+                            // packages that are no longer installed.
+                            mSnapshotRecords = null;
+                        }
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
@@ -837,33 +1245,49 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    ArrayList<AppEntrySnapshot.Record> snapshot = null;
+                    String locale = null;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
                         long now = SystemClock.uptimeMillis();
+                        // Drop requests that were lost, freeing their slots.
+                        Iterator<String> it = mSizeRequests.iterator();
+                        while (it.hasNext()) {
+                            AppEntry entry = mEntriesMap.get(it.next());
+                            if (entry == null || entry.sizeLoadStart < (now-20*1000)) {
+                                it.remove();
+                            }
+                        }
+                        // Visible packages go first.
+                        for (int i=0; i<mSizePriorityPackages.size()
+                                && mSizeRequests.size()<mSizeRequestWindow; i++) {
+                            AppEntry entry = mEntriesMap.get(mSizePriorityPackages.get(i));
+                            if (entry != null && needsSizeLocked(entry)) {
+                                startSizeRequestLocked(entry, now);
+                            }
+                        }
+                        boolean pending = false;
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                            if (needsSizeLocked(entry)) {
+                                pending = true;
+                                if (mSizeRequests.size() >= mSizeRequestWindow) {
+                                    break;
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                startSizeRequestLocked(entry, now);
                             }
                         }
+                        if (pending || !mSizeRequests.isEmpty()) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+                        if (mSizeTimings.sweepStart != 0) {
+                            mSizeTimings.lastSweepDuration = now - mSizeTimings.sweepStart;
+                            mSizeTimings.sweepStart = 0;
+                            if (DEBUG) Log.i(TAG, "Computed sizes in "
+                                    + mSizeTimings.lastSweepDuration + "ms, average "
+                                    + mSizeTimings.getAverageLatency() + "ms per package");
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -871,8 +1295,16 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        if (mSnapshotDirty) {
+                            snapshot = buildSnapshotLocked();
+                            locale = getSnapshotLocale();
+                            mSnapshotDirty = false;
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (snapshot != null) {
+                        mSnapshot.write(locale, snapshot);
+                    }
                 } break;
             }
         }
@@ -61,6 +61,7 @@ import com.android.settings.Settings.StorageUseActivity;
 import com.android.settings.applications.ApplicationsState.AppEntry;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 
 final class CanBeOnSdCardChecker {
@@ -245,7 +246,8 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
@@ -254,7 +256,11 @@ public class ManageApplications extends Fragment implements
         private int mLastFilterMode=-1, mLastSortMode=-1;
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
+        private int mFirstVisible = -1, mVisibleCount = -1;
         CharSequence mCurFilterPrefix;
+        // Label index built by the rebuild along with mBaseEntries, if it
+        // was still the latest when we took the list.
+        private volatile AppEntryPrefixIndex mPrefixIndex;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -357,13 +363,9 @@ public class ManageApplications extends Fragment implements
                 // Don't have new list yet, but can continue using the old one.
                 return;
             }
-            mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            } else {
-                mEntries = null;
+            if (applyRebuildResult(entries)) {
+                notifyDataSetChanged();
             }
-            notifyDataSetChanged();
             updateStorageUsage();
 
             if (entries == null) {
@@ -376,19 +378,73 @@ public class ManageApplications extends Fragment implements
             }
         }
 
+        /**
+         * Takes a new list from the rebuild.  When it is a delta on top of
+         * the list we already have, only the changed entries are re-filtered.
+         * Returns false if nothing visible changed.
+         */
+        boolean applyRebuildResult(ArrayList<ApplicationsState.AppEntry> entries) {
+            ApplicationsState.RebuildDelta delta = entries != null
+                    ? mState.getRebuildDelta(entries) : null;
+            if (delta == null || mBaseEntries == null || mEntries == null
+                    || delta.previous != mBaseEntries) {
+                mBaseEntries = entries;
+                mPrefixIndex = entries != null ? mState.getPrefixIndex(entries) : null;
+                if (mBaseEntries != null) {
+                    mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+                } else {
+                    mEntries = null;
+                }
+                return true;
+            }
+            if (DEBUG) Log.i(TAG, "Applying rebuild delta: " + delta.removed.size()
+                    + " removed, " + delta.added.size() + " added");
+            final boolean filtered = mEntries != mBaseEntries;
+            mBaseEntries = entries;
+            mPrefixIndex = mState.getPrefixIndex(entries);
+            if (!filtered) {
+                mEntries = entries;
+                return !delta.isEmpty();
+            }
+            if (delta.isEmpty()) {
+                return false;
+            }
+            String prefixStr = ApplicationsState.normalize(mCurFilterPrefix.toString());
+            ArrayList<ApplicationsState.AppEntry> newEntries
+                    = new ArrayList<ApplicationsState.AppEntry>(mEntries);
+            boolean changed = false;
+            for (int i=0; i<delta.removed.size(); i++) {
+                changed |= newEntries.remove(delta.removed.get(i));
+            }
+            for (int i=0; i<delta.added.size(); i++) {
+                ApplicationsState.AppEntry entry = delta.added.get(i);
+                if (AppEntryPrefixIndex.matches(entry.getNormalizedLabel(), prefixStr)) {
+                    int idx = Collections.binarySearch(newEntries, entry, delta.comparator);
+                    newEntries.add(idx < 0 ? -idx - 1 : idx, entry);
+                    changed = true;
+                }
+            }
+            mEntries = newEntries;
+            return changed;
+        }
+
         ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
                 ArrayList<ApplicationsState.AppEntry> origEntries) {
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
+                AppEntryPrefixIndex index = mPrefixIndex;
+                if (index != null && index.mEntries == origEntries) {
+                    return index.find(prefixStr);
+                }
+                // No index for this list; scan it rather than building one
+                // here, which may be the UI thread.
                 ArrayList<ApplicationsState.AppEntry> newEntries
                         = new ArrayList<ApplicationsState.AppEntry>();
                 for (int i=0; i<origEntries.size(); i++) {
                     ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
+                    if (AppEntryPrefixIndex.matches(entry.getNormalizedLabel(), prefixStr)) {
                         newEntries.add(entry);
                     }
                 }
@@ -412,9 +468,9 @@ public class ManageApplications extends Fragment implements
             mListContainer.setVisibility(View.VISIBLE);
             mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
-            mBaseEntries = apps;
-            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            notifyDataSetChanged();
+            if (applyRebuildResult(apps)) {
+                notifyDataSetChanged();
+            }
             updateStorageUsage();
         }
 
@@ -542,6 +598,28 @@ public class ManageApplications extends Fragment implements
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
         }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mEntries == null || (firstVisibleItem == mFirstVisible
+                    && visibleItemCount == mVisibleCount)) {
+                return;
+            }
+            mFirstVisible = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+            // Have the sizes of what is on screen computed first.
+            ArrayList<String> visible = new ArrayList<String>(visibleItemCount);
+            final int end = Math.min(firstVisibleItem + visibleItemCount, mEntries.size());
+            for (int i=firstVisibleItem; i<end; i++) {
+                visible.add(mEntries.get(i).info.packageName);
+            }
+            mState.setSizePriorityPackages(visible);
+        }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
     }
     
     @Override
@@ -612,6 +690,7 @@ public class ManageApplications extends Fragment implements
         lv.setTextFilterEnabled(true);
         mListView = lv;
         lv.setRecyclerListener(mApplicationsAdapter);
+        lv.setOnScrollListener(mApplicationsAdapter);
         mListView.setAdapter(mApplicationsAdapter);
         mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
         mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
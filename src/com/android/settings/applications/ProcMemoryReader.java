@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads memory figures out of a proc file system: /proc/meminfo for the
+ * system totals and /proc/&lt;pid&gt;/statm for each process.  All files are
+ * read into one reusable buffer and parsed in place, without creating a
+ * String per line.  Uses nothing but java.io, so it can be pointed at a
+ * fake proc tree on any Linux machine.
+ */
+class ProcMemoryReader {
+    private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+    private static final byte[] MEM_FREE = "MemFree:".getBytes();
+    private static final byte[] CACHED = "Cached:".getBytes();
+
+    private final String mRootPath;
+    private final int mPageSize;
+    private final byte[] mBuffer = new byte[4096];
+    private final StringBuilder mPath = new StringBuilder();
+
+    private long mTotalSize;
+    private long mFreeSize;
+    private long mCachedSize;
+
+    ProcMemoryReader(File root, int pageSize) {
+        mRootPath = root.getPath();
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Reads /proc/meminfo.  Sizes not found are left at zero.
+     */
+    synchronized void readMemInfo() {
+        mTotalSize = mFreeSize = mCachedSize = 0;
+        mPath.setLength(0);
+        mPath.append(mRootPath).append("/meminfo");
+        final int len = readFile(mPath.toString());
+        int pos = 0;
+        while (pos < len) {
+            if (matches(pos, len, MEM_TOTAL)) {
+                mTotalSize = parseLong(pos + MEM_TOTAL.length, len) * 1024;
+            } else if (matches(pos, len, MEM_FREE)) {
+                mFreeSize = parseLong(pos + MEM_FREE.length, len) * 1024;
+            } else if (matches(pos, len, CACHED)) {
+                mCachedSize = parseLong(pos + CACHED.length, len) * 1024;
+            }
+            while (pos < len && mBuffer[pos] != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+    }
+
+    synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    synchronized long getFreeSize() {
+        return mFreeSize;
+    }
+
+    synchronized long getCachedSize() {
+        return mCachedSize;
+    }
+
+    /**
+     * Fills outSizes with the resident set size of each pid, in kilobytes,
+     * or zero for processes that have gone away.
+     */
+    synchronized void readResidentSizes(int[] pids, long[] outSizes) {
+        for (int i=0; i<pids.length; i++) {
+            mPath.setLength(0);
+            mPath.append(mRootPath).append('/').append(pids[i]).append("/statm");
+            final int len = readFile(mPath.toString());
+            // statm is "size resident shared ...", counted in pages.
+            int pos = 0;
+            while (pos < len && mBuffer[pos] != ' ') {
+                pos++;
+            }
+            outSizes[i] = len > 0 ? parseLong(pos, len) * mPageSize / 1024 : 0;
+        }
+    }
+
+    /**
+     * Reads as much of the file as fits into the buffer, returning the
+     * number of bytes read, or 0 if it could not be read.
+     */
+    private int readFile(String path) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(path);
+            int len = 0;
+            int count;
+            while (len < mBuffer.length
+                    && (count = is.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += count;
+            }
+            return len;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private boolean matches(int pos, int len, byte[] key) {
+        if (pos + key.length > len) {
+            return false;
+        }
+        for (int i=0; i<key.length; i++) {
+            if (mBuffer[pos + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the first number at or after pos on the current line.
+     */
+    private long parseLong(int pos, int len) {
+        while (pos < len && (mBuffer[pos] < '0' || mBuffer[pos] > '9')) {
+            if (mBuffer[pos] == '\n') {
+                return 0;
+            }
+            pos++;
+        }
+        long value = 0;
+        while (pos < len && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+            value = value * 10 + (mBuffer[pos] - '0');
+            pos++;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+
+import java.io.File;
+import java.util.List;
+
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+
+/**
+ * Process information whose memory figures are read directly from /proc
+ * instead of through the activity manager.  Process memory is the resident
+ * set size, which counts shared pages in full, so it reads higher than the
+ * proportional set size but costs no binder calls.  The lists of processes
+ * and services still come from the activity manager.
+ */
+class ProcProcessInfoSource implements ProcessInfoSource {
+    final ActivityManager mAm;
+    final ProcMemoryReader mReader;
+
+    ProcProcessInfoSource(ActivityManager am) {
+        this(am, new ProcMemoryReader(new File("/proc"),
+                (int) Libcore.os.sysconf(OsConstants._SC_PAGESIZE)));
+    }
+
+    ProcProcessInfoSource(ActivityManager am, ProcMemoryReader reader) {
+        mAm = am;
+        mReader = reader;
+    }
+
+    @Override
+    public List<ActivityManager.RunningServiceInfo> getRunningServices(int maxNum) {
+        return mAm.getRunningServices(maxNum);
+    }
+
+    @Override
+    public List<ActivityManager.RunningAppProcessInfo> getRunningAppProcesses() {
+        return mAm.getRunningAppProcesses();
+    }
+
+    @Override
+    public boolean getProcessMemory(int[] pids, long[] outSizes) {
+        mReader.readResidentSizes(pids, outSizes);
+        return true;
+    }
+
+    @Override
+    public void readMemInfo(MemInfo outInfo) {
+        synchronized (mReader) {
+            mReader.readMemInfo();
+            outInfo.totalSize = mReader.getTotalSize();
+            outInfo.freeSize = mReader.getFreeSize();
+            outInfo.cachedSize = mReader.getCachedSize();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+
+import java.util.List;
+
+/**
+ * Where {@link RunningState} gets its information about running processes,
+ * services and memory from.
+ */
+interface ProcessInfoSource {
+    /**
+     * System wide memory figures, in bytes.
+     */
+    static class MemInfo {
+        long totalSize;
+        long freeSize;
+        long cachedSize;
+    }
+
+    List<ActivityManager.RunningServiceInfo> getRunningServices(int maxNum);
+
+    List<ActivityManager.RunningAppProcessInfo> getRunningAppProcesses();
+
+    /**
+     * Fills outSizes with the memory used by each of the given pids, in
+     * kilobytes.  Returns false if the sizes could not be retrieved at all.
+     */
+    boolean getProcessMemory(int[] pids, long[] outSizes);
+
+    void readMemInfo(MemInfo outInfo);
+}
@@ -16,7 +16,6 @@
 
 package com.android.settings.applications;
 
-import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 
 import android.app.ActivityManager;
@@ -31,6 +30,7 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -81,7 +81,14 @@ public class RunningProcessesView extends FrameLayout
     
     Dialog mCurDialog;
 
-    MemInfoReader mMemInfoReader = new MemInfoReader();
+    // Number of time ticks that found no running clock on screen.
+    int mSkippedTicks;
+
+    final ProcessInfoSource.MemInfo mMemInfo = new ProcessInfoSource.MemInfo();
+
+    // Changes taken from the state on a structure refresh; reused.
+    final RunningState.ChangeSet mChanges = new RunningState.ChangeSet();
+    final ArrayList<View> mTmpRebindViews = new ArrayList<View>();
 
     public static class ActiveItem {
         View mRootView;
@@ -90,7 +97,46 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
-        
+        long mShownSeconds = -1;
+
+        /**
+         * Returns the view showing a running uptime clock for this item,
+         * or null if it has none.
+         */
+        TextView getTickingView() {
+            if (mFirstRunTime < 0) {
+                return null;
+            }
+            if (mItem instanceof RunningState.ServiceItem) {
+                return mHolder.size;
+            }
+            if (!mItem.mBackground && mItem instanceof RunningState.MergedItem) {
+                return mHolder.uptime;
+            }
+            return null;
+        }
+
+        /**
+         * Advances the uptime clock of this item, if it has one.  Returns
+         * false if there is no clock to advance.
+         */
+        boolean tick(StringBuilder builder) {
+            TextView uptimeView = getTickingView();
+            if (uptimeView == null) {
+                return false;
+            }
+            setElapsed(uptimeView, builder);
+            return true;
+        }
+
+        private void setElapsed(TextView uptimeView, StringBuilder builder) {
+            long seconds = (SystemClock.elapsedRealtime()-mFirstRunTime)/1000;
+            if (seconds != mShownSeconds) {
+                mShownSeconds = seconds;
+                uptimeView.setText(DateUtils.formatElapsedTime(builder, seconds));
+            }
+        }
+
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
             
@@ -110,6 +156,7 @@ public class RunningProcessesView extends FrameLayout
                     // This is a background process; no uptime.
                     if (!mSetBackground) {
                         mSetBackground = true;
+                        mShownSeconds = -1;
                         mHolder.uptime.setText("");
                     }
                 } else if (mItem instanceof RunningState.MergedItem) {
@@ -124,9 +171,9 @@ public class RunningProcessesView extends FrameLayout
                 if (mFirstRunTime >= 0) {
                     //Log.i("foo", "Time for " + mItem.mDisplayLabel
                     //        + ": " + (SystemClock.uptimeMillis()-mFirstRunTime));
-                    uptimeView.setText(DateUtils.formatElapsedTime(builder,
-                            (SystemClock.elapsedRealtime()-mFirstRunTime)/1000));
+                    setElapsed(uptimeView, builder);
                 } else {
+                    mShownSeconds = -1;
                     boolean isService = false;
                     if (mItem instanceof RunningState.MergedItem) {
                         isService = ((RunningState.MergedItem)mItem).mServices.size() > 0;
@@ -314,8 +361,8 @@ public class RunningProcessesView extends FrameLayout
 
         // This is the amount of available memory until we start killing
         // background services.
-        mMemInfoReader.readMemInfo();
-        long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
+        mState.readMemInfo(mMemInfo);
+        long availMem = mMemInfo.freeSize + mMemInfo.cachedSize
                 - SECONDARY_SERVER_MEM;
         if (availMem < 0) {
             availMem = 0;
@@ -333,7 +380,7 @@ public class RunningProcessesView extends FrameLayout
                 mBackgroundProcessText.setText(getResources().getString(
                         R.string.service_background_processes, sizeStr));
                 sizeStr = Formatter.formatShortFileSize(getContext(),
-                        mMemInfoReader.getTotalSize() - freeMem);
+                        mMemInfo.totalSize - freeMem);
                 mForegroundProcessText.setText(getResources().getString(
                         R.string.service_foreground_processes, sizeStr));
             }
@@ -353,7 +400,7 @@ public class RunningProcessesView extends FrameLayout
                 */
             }
             
-            float totalMem = mMemInfoReader.getTotalSize();
+            float totalMem = mMemInfo.totalSize;
             float totalShownMem = availMem + mLastBackgroundProcessMemory
                     + mLastServiceProcessMemory;
             mColorBar.setRatios((totalMem-totalShownMem)/totalMem,
@@ -460,18 +507,95 @@ public class RunningProcessesView extends FrameLayout
         }
     }
 
+    /**
+     * Called every second; only advances the uptime clocks currently on
+     * screen, leaving sizes and the rest of the list alone.
+     */
+    void updateTickers() {
+        boolean ticked = false;
+        for (ActiveItem ai : mActiveItems.values()) {
+            if (ai.mRootView.getWindowToken() != null && ai.tick(mBuilder)) {
+                ticked = true;
+            }
+        }
+        if (!ticked) {
+            mSkippedTicks++;
+        }
+    }
+
+    /**
+     * When items only changed in place, rebinds just the views showing
+     * them instead of having the list rebind everything.  Returns false if
+     * the list needs a full refresh after all.
+     */
+    boolean rebindChangedItems() {
+        synchronized (mState.mLock) {
+            ArrayList<RunningState.MergedItem> newItems = mAdapter.mShowBackground
+                    ? mState.getCurrentBackgroundItems() : mState.getCurrentMergedItems();
+            if (newItems == null || newItems.size() != mAdapter.mItems.size()) {
+                return false;
+            }
+            for (int i=0; i<newItems.size(); i++) {
+                if (newItems.get(i) != mAdapter.mItems.get(i)) {
+                    return false;
+                }
+            }
+            mAdapter.mItems = newItems;
+        }
+        // Collect first: binding puts into mActiveItems.
+        mTmpRebindViews.clear();
+        for (ActiveItem ai : mActiveItems.values()) {
+            if (ai.mRootView.getWindowToken() != null
+                    && ai.mItem instanceof RunningState.MergedItem
+                    && mChanges.affects((RunningState.MergedItem)ai.mItem)) {
+                mTmpRebindViews.add(ai.mRootView);
+            }
+        }
+        for (int i=0; i<mTmpRebindViews.size(); i++) {
+            View view = mTmpRebindViews.get(i);
+            int position = mListView.getPositionForView(view);
+            if (position != AdapterView.INVALID_POSITION) {
+                mAdapter.bindView(view, position);
+            }
+        }
+        mTmpRebindViews.clear();
+        return true;
+    }
+
+    /**
+     * Returns how many time ticks found no running clock on screen, and so
+     * touched no views.
+     */
+    int getSkippedTicks() {
+        return mSkippedTicks;
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(MotionEvent ev) {
+        if (ev.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            // Go back to the fast refresh rate while the user is looking.
+            mState.noteUserInteraction();
+        }
+        return super.onInterceptTouchEvent(ev);
+    }
+
     @Override
     public void onRefreshUi(int what) {
         switch (what) {
             case REFRESH_TIME:
-                updateTimes();
+                updateTickers();
                 break;
             case REFRESH_DATA:
                 refreshUi(false);
                 updateTimes();
                 break;
             case REFRESH_STRUCTURE:
-                refreshUi(true);
+                mState.takeChanges(mChanges);
+                if (mChanges.isChangeOnly() && rebindChangedItems()) {
+                    refreshUi(false);
+                } else {
+                    refreshUi(true);
+                }
                 updateTimes();
                 break;
         }
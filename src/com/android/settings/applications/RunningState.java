@@ -19,7 +19,6 @@ package com.android.settings.applications;
 import com.android.settings.R;
 
 import android.app.ActivityManager;
-import android.app.ActivityManagerNative;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -32,7 +31,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -59,13 +58,22 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // The contents update delay doubles for every update that changes
+    // nothing, up to this.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
 
     static final int MAX_SERVICES = 100;
 
+    // When set, process memory is read from /proc instead of the activity manager.
+    static final String PROC_MEMORY_PERSIST_PROP = "persist.sys.settings_proc_mem";
+
     final Context mApplicationContext;
     final ActivityManager mAm;
     final PackageManager mPm;
 
+    // Where process, service and memory information comes from.
+    final ProcessInfoSource mSource;
+
     OnRefreshUiListener mRefreshUiListener;
 
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
@@ -101,17 +109,33 @@ public class RunningState {
     final ArrayList<ProcessItem> mAllProcessItems = new ArrayList<ProcessItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
-
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
-            info = _info;
-        }
+        int seq;
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structure used when updating above information.  The
+    // entries are kept from one update to the next and reused for pids that
+    // are still running; those that go away are kept in mFreeAppProcesses.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mFreeAppProcesses = new ArrayList<AppProcessInfo>();
+
+    // Services that stopped running, kept by component so that their
+    // ServiceItem (and its resolved info and label) can be reused if they
+    // start again.
+    static final int MAX_RECYCLED_SERVICES = MAX_SERVICES;
+    final HashMap<ComponentName, ServiceItem> mRecycledServices
+            = new HashMap<ComponentName, ServiceItem>();
+
+    // Pids of mAllProcessItems and their memory, reallocated when the
+    // number of processes changes.
+    int[] mTmpPids = new int[0];
+    long[] mTmpProcessMemory = new long[0];
+
+    // What the last update changed.  Reused on every update, so only valid
+    // on the background thread until the next one.
+    final ChangeSet mChanges = new ChangeSet();
 
     int mSequence = 0;
     
@@ -125,6 +149,14 @@ public class RunningState {
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
 
+    // Current delay between contents updates, and how many updates at the
+    // base rate have been skipped by backing off.
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+    int mSkippedContentsUpdates;
+
+    // Structural changes not yet taken by the UI.
+    final ChangeSet mPendingChanges = new ChangeSet();
+
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
@@ -157,11 +189,32 @@ public class RunningState {
                         }
                     }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    final ChangeSet changes = update(mApplicationContext, mSource);
+                    // Only structural changes reset the back-off; sizes
+                    // drift all the time and just need REFRESH_DATA.
+                    final boolean changed = changes.isStructural();
+                    cmd.arg1 = changed ? OnRefreshUiListener.REFRESH_STRUCTURE
+                            : changes.mSizesChanged ? OnRefreshUiListener.REFRESH_DATA
+                            : OnRefreshUiListener.REFRESH_TIME;
                     mHandler.sendMessage(cmd);
+                    long delay;
+                    synchronized (mLock) {
+                        if (changed) {
+                            mPendingChanges.add(changes);
+                        }
+                        if (changed) {
+                            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                        } else {
+                            mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                            mSkippedContentsUpdates +=
+                                    (int) (mContentsUpdateDelay / CONTENTS_UPDATE_DELAY) - 1;
+                        }
+                        delay = mContentsUpdateDelay;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -176,9 +229,8 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    // Keep the strongest refresh until the next tick.
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1);
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -211,6 +263,80 @@ public class RunningState {
         public void onRefreshUi(int what);
     }
 
+    /**
+     * Items added, removed or changed by an update, in the order they were
+     * found.  An item may appear more than once.  The lists are kept and
+     * cleared between updates, so filling them does not allocate once they
+     * have grown to size.
+     */
+    static class ChangeSet {
+        final ArrayList<BaseItem> mAdded = new ArrayList<BaseItem>();
+        final ArrayList<BaseItem> mRemoved = new ArrayList<BaseItem>();
+        final ArrayList<BaseItem> mChanged = new ArrayList<BaseItem>();
+        // The shown background items changed.
+        boolean mBackgroundChanged;
+        // The size shown for some items changed.
+        boolean mSizesChanged;
+
+        void clear() {
+            mAdded.clear();
+            mRemoved.clear();
+            mChanged.clear();
+            mBackgroundChanged = false;
+            mSizesChanged = false;
+        }
+
+        /**
+         * Adds everything in the given change set to this one.
+         */
+        void add(ChangeSet other) {
+            addAll(mAdded, other.mAdded);
+            addAll(mRemoved, other.mRemoved);
+            addAll(mChanged, other.mChanged);
+            mBackgroundChanged |= other.mBackgroundChanged;
+            mSizesChanged |= other.mSizesChanged;
+        }
+
+        // ArrayList.addAll() copies the source into a new array first.
+        private static void addAll(ArrayList<BaseItem> dest, ArrayList<BaseItem> src) {
+            for (int i=0; i<src.size(); i++) {
+                dest.add(src.get(i));
+            }
+        }
+
+        /**
+         * Returns true if the structure of the list shown changed, as
+         * opposed to just sizes or times within it.
+         */
+        boolean isStructural() {
+            return mAdded.size() > 0 || mRemoved.size() > 0 || mChanged.size() > 0
+                    || mBackgroundChanged;
+        }
+
+        /**
+         * Returns true if items were only changed in place: none added or
+         * removed, and the background items are the same.
+         */
+        boolean isChangeOnly() {
+            return mAdded.size() == 0 && mRemoved.size() == 0 && !mBackgroundChanged;
+        }
+
+        /**
+         * Returns true if a changed item is shown as part of the given
+         * merged item.
+         */
+        boolean affects(MergedItem item) {
+            for (int i=0; i<mChanged.size(); i++) {
+                BaseItem changed = mChanged.get(i);
+                if (changed == item.mProcess || item.mServices.contains(changed)
+                        || item.mOtherProcesses.contains(changed)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     static class BaseItem {
         final boolean mIsProcess;
         
@@ -237,6 +363,8 @@ public class RunningState {
         ActivityManager.RunningServiceInfo mRunningService;
         ServiceInfo mServiceInfo;
         boolean mShownAsStarted;
+        String mClientPackage;
+        int mClientLabel;
         
         MergedItem mMergedItem;
         
@@ -351,23 +479,29 @@ public class RunningState {
         }
         
         boolean updateService(Context context,
-                ActivityManager.RunningServiceInfo service) {
+                ActivityManager.RunningServiceInfo service,
+                HashMap<ComponentName, ServiceItem> recycled) {
             final PackageManager pm = context.getPackageManager();
             
             boolean changed = false;
             ServiceItem si = mServices.get(service.service);
             if (si == null) {
                 changed = true;
-                si = new ServiceItem();
-                si.mRunningService = service;
-                try {
-                    si.mServiceInfo = pm.getServiceInfo(service.service, 0);
-                } catch (PackageManager.NameNotFoundException e) {
+                si = recycled.remove(service.service);
+                if (si == null) {
+                    si = new ServiceItem();
+                    si.mRunningService = service;
+                    try {
+                        si.mServiceInfo = pm.getServiceInfo(service.service, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                    }
+                    si.mDisplayLabel = makeLabel(pm,
+                            si.mRunningService.service.getClassName(), si.mServiceInfo);
+                    si.mPackageInfo = si.mServiceInfo.applicationInfo;
+                } else {
+                    si.mMergedItem = null;
                 }
-                si.mDisplayLabel = makeLabel(pm,
-                        si.mRunningService.service.getClassName(), si.mServiceInfo);
                 mLabel = mDisplayLabel != null ? mDisplayLabel.toString() : null;
-                si.mPackageInfo = si.mServiceInfo.applicationInfo;
                 mServices.put(service.service, si);
             }
             si.mCurSeq = mCurSeq;
@@ -382,29 +516,41 @@ public class RunningState {
                     si.mShownAsStarted = false;
                     changed = true;
                 }
-                try {
-                    Resources clientr = pm.getResourcesForApplication(service.clientPackage);
-                    String label = clientr.getString(service.clientLabel);
-                    si.mDescription = context.getResources().getString(
-                            R.string.service_client_name, label);
-                } catch (PackageManager.NameNotFoundException e) {
-                    si.mDescription = null;
+                // Only look up the client's label when the client changes.
+                if (si.mDescription == null || si.mClientLabel != service.clientLabel
+                        || !service.clientPackage.equals(si.mClientPackage)) {
+                    si.mClientPackage = service.clientPackage;
+                    si.mClientLabel = service.clientLabel;
+                    try {
+                        Resources clientr = pm.getResourcesForApplication(service.clientPackage);
+                        String label = clientr.getString(service.clientLabel);
+                        si.mDescription = context.getResources().getString(
+                                R.string.service_client_name, label);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        si.mDescription = null;
+                    }
                 }
             } else {
                 if (!si.mShownAsStarted) {
                     si.mShownAsStarted = true;
                     changed = true;
                 }
-                si.mDescription = context.getResources().getString(
-                        R.string.service_started_by_app);
+                if (si.mClientPackage != null || si.mDescription == null) {
+                    si.mClientPackage = null;
+                    si.mClientLabel = 0;
+                    si.mDescription = context.getResources().getString(
+                            R.string.service_started_by_app);
+                }
             }
             
             return changed;
         }
         
         boolean updateSize(Context context, long pss, int curSeq) {
-            mSize = pss * 1024;
-            if (mCurSeq == curSeq) {
+            final long size = pss * 1024;
+            final boolean sizeChanged = size != mSize;
+            mSize = size;
+            if (mCurSeq == curSeq && (sizeChanged || mSizeStr == null)) {
                 String sizeStr = Formatter.formatShortFileSize(
                         context, mSize);
                 if (!sizeStr.equals(mSizeStr)){
@@ -502,19 +648,23 @@ public class RunningState {
         }
         
         boolean updateSize(Context context) {
-            mSize = mProcess.mSize;
+            long size = mProcess.mSize;
             for (int i=0; i<mOtherProcesses.size(); i++) {
-                mSize += mOtherProcesses.get(i).mSize;
+                size += mOtherProcesses.get(i).mSize;
+            }
+            if (size == mSize && mSizeStr != null) {
+                return false;
             }
+            mSize = size;
             
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
                 mSizeStr = sizeStr;
                 // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
+                // the text in the current items, so this is not a change
+                // in structure.
+                return true;
             }
             return false;
         }
@@ -570,6 +720,8 @@ public class RunningState {
         mApplicationContext = context.getApplicationContext();
         mAm = (ActivityManager)mApplicationContext.getSystemService(Context.ACTIVITY_SERVICE);
         mPm = mApplicationContext.getPackageManager();
+        mSource = SystemProperties.getBoolean(PROC_MEMORY_PERSIST_PROP, false)
+                ? new ProcProcessInfoSource(mAm) : new ActivityManagerProcessInfoSource(mAm);
         mResumed = false;
         mBackgroundThread = new HandlerThread("RunningState:Background");
         mBackgroundThread.start();
@@ -580,6 +732,9 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+            // The listener starts from the whole current list.
+            mPendingChanges.clear();
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
                 mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
@@ -600,6 +755,47 @@ public class RunningState {
         }
     }
 
+    /**
+     * Called when the user interacts with the running list, to go back to
+     * the base refresh rate if updates have been backing off.
+     */
+    void noteUserInteraction() {
+        synchronized (mLock) {
+            if (mContentsUpdateDelay > CONTENTS_UPDATE_DELAY) {
+                mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                updateNow();
+            }
+        }
+    }
+
+    long getContentsUpdateDelay() {
+        synchronized (mLock) {
+            return mContentsUpdateDelay;
+        }
+    }
+
+    /**
+     * Moves the structural changes made since the last call into the given
+     * change set, replacing what it held.
+     */
+    void takeChanges(ChangeSet outChanges) {
+        synchronized (mLock) {
+            outChanges.clear();
+            outChanges.add(mPendingChanges);
+            mPendingChanges.clear();
+        }
+    }
+
+    int getSkippedContentsUpdates() {
+        synchronized (mLock) {
+            return mSkippedContentsUpdates;
+        }
+    }
+
+    void readMemInfo(ProcessInfoSource.MemInfo outInfo) {
+        mSource.readMemInfo(outInfo);
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -646,19 +842,30 @@ public class RunningState {
         mRunningProcesses.clear();
         mProcessItems.clear();
         mAllProcessItems.clear();
+        mTmpAppProcesses.clear();
+        mFreeAppProcesses.clear();
+        mRecycledServices.clear();
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    private void recycleService(ServiceItem si) {
+        if (mRecycledServices.size() < MAX_RECYCLED_SERVICES) {
+            mRecycledServices.put(si.mRunningService.service, si);
+        }
+    }
+
+    // Package private for tests, which drive it with a fake source.
+    ChangeSet update(Context context, ProcessInfoSource source) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
-        boolean changed = false;
+        final ChangeSet changes = mChanges;
+        changes.clear();
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
         List<ActivityManager.RunningServiceInfo> services 
-                = am.getRunningServices(MAX_SERVICES);
+                = source.getRunningServices(MAX_SERVICES);
         int NS = services != null ? services.size() : 0;
         for (int i=0; i<NS; i++) {
             ActivityManager.RunningServiceInfo si = services.get(i);
@@ -685,12 +892,28 @@ public class RunningState {
         // Retrieve list of running processes, organizing them into a sparse
         // array for easy retrieval.
         List<ActivityManager.RunningAppProcessInfo> processes
-                = am.getRunningAppProcesses();
+                = source.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
-        mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            AppProcessInfo ainfo = mTmpAppProcesses.get(pi.pid);
+            if (ainfo == null) {
+                final int NF = mFreeAppProcesses.size();
+                ainfo = NF > 0 ? mFreeAppProcesses.remove(NF-1) : new AppProcessInfo();
+                mTmpAppProcesses.put(pi.pid, ainfo);
+            }
+            ainfo.info = pi;
+            ainfo.hasServices = false;
+            ainfo.hasForegroundServices = false;
+            ainfo.seq = mSequence;
+        }
+        for (int i=mTmpAppProcesses.size()-1; i>=0; i--) {
+            AppProcessInfo ainfo = mTmpAppProcesses.valueAt(i);
+            if (ainfo.seq != mSequence) {
+                ainfo.info = null;
+                mFreeAppProcesses.add(ainfo);
+                mTmpAppProcesses.removeAt(i);
+            }
         }
 
         // Initial iteration through running services to collect per-process
@@ -752,15 +975,15 @@ public class RunningState {
             }
             ProcessItem proc = procs.get(si.process);
             if (proc == null) {
-                changed = true;
                 proc = new ProcessItem(context, si.uid, si.process);
                 procs.put(si.process, proc);
+                changes.mAdded.add(proc);
             }
             
             if (proc.mCurSeq != mSequence) {
                 int pid = si.restarting == 0 ? si.pid : 0;
                 if (pid != proc.mPid) {
-                    changed = true;
+                    changes.mChanged.add(proc);
                     if (proc.mPid != pid) {
                         if (proc.mPid != 0) {
                             mServiceProcessesByPid.remove(proc.mPid);
@@ -774,7 +997,9 @@ public class RunningState {
                 proc.mDependentProcesses.clear();
                 proc.mCurSeq = mSequence;
             }
-            changed |= proc.updateService(context, si);
+            if (proc.updateService(context, si, mRecycledServices)) {
+                changes.mChanged.add(proc);
+            }
         }
         
         // Now update the map of other processes that are running (but
@@ -788,18 +1013,18 @@ public class RunningState {
                 // running list.
                 proc = mRunningProcesses.get(pi.pid);
                 if (proc == null) {
-                    changed = true;
                     proc = new ProcessItem(context, pi.uid, pi.processName);
                     proc.mPid = pi.pid;
                     mRunningProcesses.put(pi.pid, proc);
+                    changes.mAdded.add(proc);
                 }
                 proc.mDependentProcesses.clear();
             }
             
             if (isInterestingProcess(pi)) {
                 if (!mInterestingProcesses.contains(proc)) {
-                    changed = true;
                     mInterestingProcesses.add(proc);
+                    changes.mChanged.add(proc);
                 }
                 proc.mCurSeq = mSequence;
                 proc.mInteresting = true;
@@ -835,8 +1060,8 @@ public class RunningState {
                 }
                 i++;
             } else {
-                changed = true;
-                mRunningProcesses.remove(mRunningProcesses.keyAt(i));
+                changes.mRemoved.add(proc);
+                mRunningProcesses.removeAt(i);
                 NRP--;
             }
         }
@@ -846,7 +1071,7 @@ public class RunningState {
         for (int i=0; i<NHP; i++) {
             ProcessItem proc = mInterestingProcesses.get(i);
             if (!proc.mInteresting || mRunningProcesses.get(proc.mPid) == null) {
-                changed = true;
+                changes.mChanged.add(proc);
                 mInterestingProcesses.remove(i);
                 i--;
                 NHP--;
@@ -859,8 +1084,9 @@ public class RunningState {
         final int NAP = mServiceProcessesByPid.size();
         for (int i=0; i<NAP; i++) {
             ProcessItem proc = mServiceProcessesByPid.valueAt(i);
-            if (proc.mCurSeq == mSequence) {
-                changed |= proc.buildDependencyChain(context, pm, mSequence);
+            if (proc.mCurSeq == mSequence
+                    && proc.buildDependencyChain(context, pm, mSequence)) {
+                changes.mChanged.add(proc);
             }
         }
         
@@ -879,7 +1105,10 @@ public class RunningState {
                         pi.mDependentProcesses.clear();
                     }
                 } else {
-                    changed = true;
+                    changes.mRemoved.add(pi);
+                    for (ServiceItem si : pi.mServices.values()) {
+                        recycleService(si);
+                    }
                     pit.remove();
                     if (procs.size() == 0) {
                         if (uidToDelete == null) {
@@ -896,7 +1125,8 @@ public class RunningState {
                 while (sit.hasNext()) {
                     ServiceItem si = sit.next();
                     if (si.mCurSeq != mSequence) {
-                        changed = true;
+                        changes.mRemoved.add(si);
+                        recycleService(si);
                         sit.remove();
                     }
                 }
@@ -910,7 +1140,7 @@ public class RunningState {
             }
         }
 
-        if (changed) {
+        if (changes.isStructural()) {
             // First determine an order for the services.
             ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
@@ -1047,18 +1277,21 @@ public class RunningState {
         long foregroundProcessMemory = 0;
         long serviceProcessMemory = 0;
         ArrayList<MergedItem> newBackgroundItems = null;
-        try {
-            final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+        final int numProc = mAllProcessItems.size();
+        if (mTmpPids.length != numProc) {
+            mTmpPids = new int[numProc];
+            mTmpProcessMemory = new long[numProc];
+        }
+        final int[] pids = mTmpPids;
+        for (int i=0; i<numProc; i++) {
+            pids[i] = mAllProcessItems.get(i).mPid;
+        }
+        final long[] pss = mTmpProcessMemory;
+        if (source.getProcessMemory(pids, pss)) {
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                proc.updateSize(context, pss[i], mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1066,8 +1299,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem();
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainBackgroundItem(proc);
                         newBackgroundItems.add(mergedItem);
                     } else {
                         if (bgIndex >= mBackgroundItems.size()
@@ -1076,22 +1308,22 @@ public class RunningState {
                             for (int bgi=0; bgi<bgIndex; bgi++) {
                                 newBackgroundItems.add(mBackgroundItems.get(bgi));
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem();
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainBackgroundItem(proc);
                             newBackgroundItems.add(mergedItem);
                         } else {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
                     mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
+                    if (mergedItem.updateSize(context)) {
+                        changes.mSizesChanged = true;
+                    }
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
                     foregroundProcessMemory += proc.mSize;
                 }
             }
-        } catch (RemoteException e) {
         }
         
         if (newBackgroundItems == null) {
@@ -1105,7 +1337,9 @@ public class RunningState {
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+            if (mMergedItems.get(i).updateSize(context)) {
+                changes.mSizesChanged = true;
+            }
         }
         
         synchronized (mLock) {
@@ -1118,7 +1352,7 @@ public class RunningState {
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 if (mWatchingBackgroundItems) {
-                    changed = true;
+                    changes.mBackgroundChanged = true;
                 }
             }
             if (!mHaveData) {
@@ -1127,7 +1361,21 @@ public class RunningState {
             }
         }
         
-        return changed;
+        return changes;
+    }
+
+    /**
+     * Returns the item showing the given background process, reusing the
+     * one it was last shown with.
+     */
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc
+                || mergedItem.mServices.size() > 0) {
+            mergedItem = proc.mMergedItem = new MergedItem();
+            mergedItem.mProcess = proc;
+        }
+        return mergedItem;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures directory sizes in process, remembering for every directory its
+ * modification time, the names of the files directly in it and its
+ * subdirectories.  A directory whose modification time did not change since
+ * it was last listed is not listed again, and its entries are not checked
+ * for being directories or symbolic links again.  The length of every file
+ * is still read on each measurement, since a file rewritten in place does
+ * not touch the modification time of its directory.
+ *
+ * Uses no framework classes, so it can be run against any file system.
+ * {@link #measure} may be called from several threads at once.
+ */
+final class DirectorySizeCache {
+    private static final int VERSION = 2;
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private static final class Entry {
+        final long mModified;
+        /** Names of the files directly in the directory. */
+        final String[] mFiles;
+        /** Names of the subdirectories, symbolic links left out. */
+        final String[] mDirs;
+
+        Entry(long modified, String[] files, String[] dirs) {
+            mModified = modified;
+            mFiles = files;
+            mDirs = dirs;
+        }
+    }
+
+    /** Directories as of the last {@link #commit}, or as loaded. */
+    private volatile Map<String, Entry> mCommitted = new ConcurrentHashMap<String, Entry>();
+
+    /** Directories visited since the last {@link #commit}. */
+    private volatile Map<String, Entry> mVisited = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Return the total length of the files under the given directory, or 0
+     * if it cannot be read.
+     */
+    long measure(String path) {
+        return measure(new File(path), path);
+    }
+
+    private long measure(File dir, String path) {
+        final long modified = dir.lastModified();
+        Entry entry = mCommitted.get(path);
+        if (entry == null || modified == 0 || entry.mModified != modified) {
+            entry = list(dir, modified);
+        }
+        mVisited.put(path, entry);
+
+        long size = 0;
+        final String[] files = entry.mFiles;
+        for (int i = 0; i < files.length; i++) {
+            size += new File(dir, files[i]).length();
+        }
+        final String[] dirs = entry.mDirs;
+        for (int i = 0; i < dirs.length; i++) {
+            final String childPath = path + File.separatorChar + dirs[i];
+            size += measure(new File(childPath), childPath);
+        }
+        return size;
+    }
+
+    private static Entry list(File dir, long modified) {
+        final File[] entries = dir.listFiles();
+        if (entries == null) {
+            return new Entry(modified, NO_NAMES, NO_NAMES);
+        }
+
+        final ArrayList<String> files = new ArrayList<String>(entries.length);
+        ArrayList<String> dirs = null;
+        for (int i = 0; i < entries.length; i++) {
+            final File file = entries[i];
+            if (file.isDirectory()) {
+                if (!isSymlink(file)) {
+                    if (dirs == null) dirs = new ArrayList<String>();
+                    dirs.add(file.getName());
+                }
+            } else {
+                files.add(file.getName());
+            }
+        }
+        return new Entry(modified, toArray(files), toArray(dirs));
+    }
+
+    private static String[] toArray(ArrayList<String> names) {
+        return names != null && names.size() > 0
+                ? names.toArray(new String[names.size()]) : NO_NAMES;
+    }
+
+    private static boolean isSymlink(File file) {
+        try {
+            final File parent = file.getParentFile().getCanonicalFile();
+            final File canonical = new File(parent, file.getName());
+            return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            // Not followed when in doubt
+            return true;
+        }
+    }
+
+    /**
+     * Keep only the directories visited since the last commit, dropping the
+     * ones that were deleted or not measured.
+     */
+    void commit() {
+        mCommitted = mVisited;
+        mVisited = new ConcurrentHashMap<String, Entry>();
+    }
+
+    /**
+     * Replace the committed directories by the ones saved in the given file.
+     */
+    void load(File file) throws IOException {
+        final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long modified = in.readLong();
+                final String[] files = readNames(in);
+                final String[] dirs = readNames(in);
+                entries.put(path, new Entry(modified, files, dirs));
+            }
+        } finally {
+            in.close();
+        }
+        mCommitted = entries;
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final String[] names = count > 0 ? new String[count] : NO_NAMES;
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    /**
+     * Write the committed directories to the given file, replacing it only
+     * once completely written.
+     */
+    void save(File file) throws IOException {
+        final Map<String, Entry> entries = mCommitted;
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.mModified);
+                writeNames(out, entry.mFiles);
+                writeNames(out, entry.mDirs);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeUTF(names[i]);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
 import android.os.storage.StorageVolume;
 import android.util.Log;
@@ -38,12 +39,23 @@ import android.util.Log;
 import com.android.internal.app.IMediaContainerService;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Measure the memory for various systems.
@@ -79,11 +91,47 @@ public class StorageMeasurement {
 
     public static final String MEDIA_SIZES = "media_sizes";
 
+    public static final String PARTIAL_CATEGORY = "partial_category";
+
+    public static final String PARTIAL_SIZE = "partial_size";
+
     private static final String DEFAULT_CONTAINER_PACKAGE = "com.android.defcontainer";
 
+    /**
+     * Measure the directories of the primary volume with a {@link DirectorySizeCache}
+     * rather than the default container service, so unchanged directories
+     * are not listed again.
+     */
+    private static final boolean MEASURE_IN_PROCESS = true;
+
+    private static final String DIRECTORY_SIZES_FILE = "storage_directory_sizes";
+
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             DEFAULT_CONTAINER_PACKAGE, "com.android.defcontainer.DefaultContainerService");
 
+    /** Directories measured at once, across all volumes. */
+    private static final int MAX_DIRECTORY_WORKERS = 3;
+
+    private static final ThreadPoolExecutor sDirectoryExecutor = new ThreadPoolExecutor(
+            MAX_DIRECTORY_WORKERS, MAX_DIRECTORY_WORKERS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    return new Thread("MemoryMeasurement Dir #" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    static {
+        sDirectoryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final MeasurementHandler mHandler;
 
     private static Map<StorageVolume, StorageMeasurement> sInstances =
@@ -105,9 +153,18 @@ public class StorageMeasurement {
 
     List<FileInfo> mFileInfoForMisc;
 
+    /** Set on the measurement thread before any directory is submitted. */
+    private DirectorySizeCache mDirectorySizes;
+
     public interface MeasurementReceiver {
         public void updateApproximate(Bundle bundle);
         public void updateExact(Bundle bundle);
+        /**
+         * Size of a single category, one of the categories of
+         * {@link StorageVolumePreferenceCategory}, known before the exact
+         * update of all of them.
+         */
+        public void updatePartial(Bundle bundle);
     }
 
     private StorageMeasurement(Context context, StorageVolume storageVolume, boolean isPrimary) {
@@ -201,6 +258,19 @@ public class StorageMeasurement {
         receiver.updateExact(bundle);
     }
 
+    private void sendPartialUpdate(int category, long size) {
+        MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
+        if (receiver == null) {
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(PARTIAL_CATEGORY, category);
+        bundle.putLong(PARTIAL_SIZE, size);
+
+        receiver.updatePartial(bundle);
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
 
@@ -386,21 +456,8 @@ public class StorageMeasurement {
                 return;
             }
 
-            // Media
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                if (mIsPrimary) {
-                    String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
-                    final int length = dirs.length;
-                    mMediaSizes[i] = 0;
-                    for (int d = 0; d < length; d++) {
-                        final String path = dirs[d];
-                        mMediaSizes[i] += getDirectorySize(imcs, path);
-                    }
-                } else {
-                    // TODO Compute sizes using the MediaStore
-                    mMediaSizes[i] = 0;
-                }
-            }
+            // Apps are measured by installd while the directories are walked below.
+            startMeasuringApps(context);
 
             /* Compute sizes using the media provider
             // Media sizes are measured by the MediaStore. Query database.
@@ -432,21 +489,11 @@ public class StorageMeasurement {
             }
              */
 
-            // Downloads (primary volume only)
-            if (mIsPrimary) {
-                final String downloadsPath = Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-                mDownloadsSize = getDirectorySize(imcs, downloadsPath);
-            } else {
-                mDownloadsSize = 0;
-            }
-
-            // Misc
-            mMiscSize = 0;
-            if (mIsPrimary) {
-                measureSizesOfMisc(imcs);
-            }
+            // Media, Downloads and Misc (primary volume only)
+            measureDirectories(context, imcs);
+        }
 
+        private void startMeasuringApps(Context context) {
             // Apps
             // We have to get installd to measure the package sizes.
             PackageManager pm = context.getPackageManager();
@@ -494,13 +541,69 @@ public class StorageMeasurement {
         return mMiscSize;
     }
 
-    private void measureSizesOfMisc(IMediaContainerService imcs) {
-        File top = new File(mStorageVolume.getPath());
+    /**
+     * Measure the media categories, Downloads and the top level misc entries
+     * of the primary volume, fanning the directories out over
+     * {@link #sDirectoryExecutor}.  Each category is sent to the receiver as
+     * a partial update as soon as all of its directories are measured.
+     */
+    private void measureDirectories(Context context, IMediaContainerService imcs) {
+        final int mediaCount = StorageVolumePreferenceCategory.sMediaCategories.length;
+        for (int i = 0; i < mediaCount; i++) {
+            // TODO Compute sizes using the MediaStore when not primary
+            mMediaSizes[i] = 0;
+        }
+        mDownloadsSize = 0;
+        mMiscSize = 0;
         mFileInfoForMisc = new ArrayList<FileInfo>();
-        File[] files = top.listFiles();
-        if (files == null) return;
-        final int len = files.length;
+        if (!mIsPrimary) {
+            return;
+        }
+
+        final File directorySizesFile = new File(context.getCacheDir(), DIRECTORY_SIZES_FILE);
+        if (MEASURE_IN_PROCESS && mDirectorySizes == null) {
+            mDirectorySizes = new DirectorySizeCache();
+            if (directorySizesFile.exists()) {
+                try {
+                    mDirectorySizes.load(directorySizesFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read directory sizes from " + directorySizesFile, e);
+                }
+            }
+        }
+
+        // One slot per media category, then Downloads, then Misc
+        final int downloadsSlot = mediaCount;
+        final int miscSlot = mediaCount + 1;
+        final long[] slotSizes = new long[mediaCount + 2];
+        final int[] slotPending = new int[mediaCount + 2];
+
+        final ExecutorCompletionService<DirectoryMeasurement> completion =
+                new ExecutorCompletionService<DirectoryMeasurement>(sDirectoryExecutor);
+        // Measurements not yet taken, by future, so that a failed one can
+        // still be counted against its slot.
+        final HashMap<Future<DirectoryMeasurement>, DirectoryMeasurement> measurements =
+                new HashMap<Future<DirectoryMeasurement>, DirectoryMeasurement>();
+
+        for (int i = 0; i < mediaCount; i++) {
+            final String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
+            for (int d = 0; d < dirs.length; d++) {
+                final DirectoryMeasurement m = new DirectoryMeasurement(imcs, i, dirs[d], -1);
+                measurements.put(completion.submit(m), m);
+                slotPending[i]++;
+            }
+        }
+
+        final String downloadsPath = Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
+        final DirectoryMeasurement downloads =
+                new DirectoryMeasurement(imcs, downloadsSlot, downloadsPath, -1);
+        measurements.put(completion.submit(downloads), downloads);
+        slotPending[downloadsSlot]++;
+
         // Get sizes of all top level nodes except the ones already computed...
+        final File[] files = new File(mStorageVolume.getPath()).listFiles();
+        final int len = files != null ? files.length : 0;
         long counter = 0;
         for (int i = 0; i < len; i++) {
             String path = files[i].getAbsolutePath();
@@ -510,17 +613,100 @@ public class StorageMeasurement {
             if (files[i].isFile()) {
                 final long fileSize = files[i].length();
                 mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                mMiscSize += fileSize;
+                slotSizes[miscSlot] += fileSize;
             } else if (files[i].isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, path);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                mMiscSize += dirSize;
+                final DirectoryMeasurement m =
+                        new DirectoryMeasurement(imcs, miscSlot, path, counter++);
+                measurements.put(completion.submit(m), m);
+                slotPending[miscSlot]++;
             } else {
                 // Non directory, non file: not listed
             }
         }
+        if (slotPending[miscSlot] == 0) {
+            mMiscSize = slotSizes[miscSlot];
+            sendPartialUpdate(StorageVolumePreferenceCategory.MISC, mMiscSize);
+        }
+
+        while (!measurements.isEmpty()) {
+            final DirectoryMeasurement result;
+            try {
+                final Future<DirectoryMeasurement> future = completion.take();
+                result = measurements.remove(future);
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Count it as empty so that its category is still
+                    // reported once the rest of the slot is done.
+                    Log.w(TAG, "Could not measure directory " + result.mPath, e);
+                    result.mSize = 0;
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while measuring directories", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final int slot = result.mSlot;
+            slotSizes[slot] += result.mSize;
+            if (slot == miscSlot) {
+                mFileInfoForMisc.add(new FileInfo(result.mPath, result.mSize, result.mId));
+            }
+            if (--slotPending[slot] > 0) {
+                continue;
+            }
+
+            if (slot == downloadsSlot) {
+                mDownloadsSize = slotSizes[slot];
+                sendPartialUpdate(StorageVolumePreferenceCategory.DOWNLOADS, mDownloadsSize);
+            } else if (slot == miscSlot) {
+                mMiscSize = slotSizes[slot];
+                sendPartialUpdate(StorageVolumePreferenceCategory.MISC, mMiscSize);
+            } else {
+                mMediaSizes[slot] = slotSizes[slot];
+                sendPartialUpdate(
+                        StorageVolumePreferenceCategory.sMediaCategories[slot].mCategory,
+                        mMediaSizes[slot]);
+            }
+        }
+
         // sort the list of FileInfo objects collected above in descending order of their sizes
         Collections.sort(mFileInfoForMisc);
+
+        if (mDirectorySizes != null) {
+            mDirectorySizes.commit();
+            try {
+                mDirectorySizes.save(directorySizesFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write directory sizes to " + directorySizesFile, e);
+            }
+        }
+    }
+
+    /**
+     * Size of one directory, measured on {@link #sDirectoryExecutor} and
+     * added to the category in the given slot.
+     */
+    private class DirectoryMeasurement implements Callable<DirectoryMeasurement> {
+        final IMediaContainerService mImcs;
+        final int mSlot;
+        final String mPath;
+        final long mId;
+        long mSize;
+
+        DirectoryMeasurement(IMediaContainerService imcs, int slot, String path, long id) {
+            mImcs = imcs;
+            mSlot = slot;
+            mPath = path;
+            mId = id;
+        }
+
+        public DirectoryMeasurement call() {
+            final DirectorySizeCache directorySizes = mDirectorySizes;
+            mSize = directorySizes != null
+                    ? directorySizes.measure(mPath) : getDirectorySize(mImcs, mPath);
+            return this;
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -129,6 +129,9 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     // Updates the memory usage bar graph.
     private static final int MSG_UI_UPDATE_EXACT = 2;
 
+    // Updates the size of a single category, ahead of the exact update.
+    private static final int MSG_UI_UPDATE_PARTIAL = 3;
+
     private Handler mUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -152,6 +155,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
                             mediaSizes);
                     break;
                 }
+                case MSG_UI_UPDATE_PARTIAL: {
+                    Bundle bundle = msg.getData();
+                    final int category = bundle.getInt(StorageMeasurement.PARTIAL_CATEGORY);
+                    final long size = bundle.getLong(StorageMeasurement.PARTIAL_SIZE);
+                    updatePartial(category, size);
+                    break;
+                }
             }
         }
     };
@@ -334,6 +344,16 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUsageBarPreference.commit();
     }
 
+    /**
+     * Show the size of one category as soon as it is known. The usage bar and
+     * empty categories are left to {@link #updateExact}.
+     */
+    public void updatePartial(int category, long size) {
+        if (size > 0) {
+            mPreferences[category].setSummary(formatSize(size));
+        }
+    }
+
     private void updatePreference(long size, long totalSize, int category) {
         if (size > 0) {
             mPreferences[category].setSummary(formatSize(size));
@@ -391,6 +411,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUpdateHandler.sendMessage(message);
     }
 
+    @Override
+    public void updatePartial(Bundle bundle) {
+        final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_PARTIAL);
+        message.setData(bundle);
+        mUpdateHandler.sendMessage(message);
+    }
+
     public boolean mountToggleClicked(Preference preference) {
         return preference == mMountTogglePreference;
     }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import java.util.Arrays;
+
+/**
+ * Power model for apps, computed over per-uid counters held in primitive
+ * arrays.  Counters are appended one uid at a time with {@link #beginUid},
+ * followed by that uid's processes and sensors; {@link #compute()} then
+ * fills in the power of every uid in a single pass.  Uses no framework
+ * classes, so it can run against synthetic counters on any JVM.
+ */
+final class AppPowerCalculator {
+    // Power profile constants, in mA.
+    private double[] mCpuSpeedPower;
+    private double mCpuAwakePower;
+    private double mWifiOnPower;
+    private double mCostPerByte;
+
+    // Per uid counters, in ms or bytes.
+    int mCount;
+    int[] mUids = new int[64];
+    long[] mWakeLockTime = new long[64];
+    long[] mTcpBytesReceived = new long[64];
+    long[] mTcpBytesSent = new long[64];
+    long[] mWifiRunningTime = new long[64];
+    private int[] mProcStart = new int[65];
+    private int[] mSensorStart = new int[65];
+
+    // Per process counters, in ms; speed step times are strided by steps.
+    private int mProcCount;
+    private String[] mProcNames = new String[128];
+    private long[] mProcCpuTime = new long[128];
+    private long[] mProcFgTime = new long[128];
+    private long[] mProcStepTimes = new long[128];
+
+    // Per sensor counters, in ms, with the power of each sensor.
+    private int mSensorCount;
+    private long[] mSensorTime = new long[64];
+    private double[] mSensorPower = new double[64];
+    private boolean[] mSensorGps = new boolean[64];
+
+    // Results of compute(), per uid.
+    double[] mPower = new double[64];
+    long[] mCpuTime = new long[64];
+    long[] mCpuFgTime = new long[64];
+    long[] mGpsTime = new long[64];
+    private int[] mHighestDrainProc = new int[64];
+
+    /**
+     * Drop all counters and set the power profile to compute with.
+     */
+    void reset(double[] cpuSpeedPower, double cpuAwakePower, double wifiOnPower,
+            double costPerByte) {
+        mCpuSpeedPower = cpuSpeedPower;
+        mCpuAwakePower = cpuAwakePower;
+        mWifiOnPower = wifiOnPower;
+        mCostPerByte = costPerByte;
+        mCount = 0;
+        mProcCount = 0;
+        mSensorCount = 0;
+        final int steps = cpuSpeedPower.length;
+        if (mProcStepTimes.length < mProcNames.length * steps) {
+            mProcStepTimes = new long[mProcNames.length * steps];
+        }
+    }
+
+    /**
+     * Start the counters of another uid; its processes and sensors follow.
+     * Returns the index of the uid.
+     */
+    int beginUid(int uid, long wakeLockTime, long tcpBytesReceived, long tcpBytesSent,
+            long wifiRunningTime) {
+        if (mCount == mUids.length) {
+            final int size = mCount*2;
+            mUids = Arrays.copyOf(mUids, size);
+            mWakeLockTime = Arrays.copyOf(mWakeLockTime, size);
+            mTcpBytesReceived = Arrays.copyOf(mTcpBytesReceived, size);
+            mTcpBytesSent = Arrays.copyOf(mTcpBytesSent, size);
+            mWifiRunningTime = Arrays.copyOf(mWifiRunningTime, size);
+            mProcStart = Arrays.copyOf(mProcStart, size+1);
+            mSensorStart = Arrays.copyOf(mSensorStart, size+1);
+            mPower = new double[size];
+            mCpuTime = new long[size];
+            mCpuFgTime = new long[size];
+            mGpsTime = new long[size];
+            mHighestDrainProc = new int[size];
+        }
+        final int i = mCount++;
+        mUids[i] = uid;
+        mWakeLockTime[i] = wakeLockTime;
+        mTcpBytesReceived[i] = tcpBytesReceived;
+        mTcpBytesSent[i] = tcpBytesSent;
+        mWifiRunningTime[i] = wifiRunningTime;
+        mProcStart[i] = mProcStart[i+1] = mProcCount;
+        mSensorStart[i] = mSensorStart[i+1] = mSensorCount;
+        return i;
+    }
+
+    /**
+     * Add a process to the current uid.  Only the first speed steps of the
+     * profile are read from {@code stepTimes}.
+     */
+    void addProcess(String name, long cpuTime, long fgTime, long[] stepTimes) {
+        final int steps = mCpuSpeedPower.length;
+        if (mProcCount == mProcNames.length) {
+            final int size = mProcCount*2;
+            mProcNames = Arrays.copyOf(mProcNames, size);
+            mProcCpuTime = Arrays.copyOf(mProcCpuTime, size);
+            mProcFgTime = Arrays.copyOf(mProcFgTime, size);
+            mProcStepTimes = Arrays.copyOf(mProcStepTimes, size * steps);
+        }
+        final int p = mProcCount++;
+        mProcNames[p] = name;
+        mProcCpuTime[p] = cpuTime;
+        mProcFgTime[p] = fgTime;
+        System.arraycopy(stepTimes, 0, mProcStepTimes, p * steps, steps);
+        mProcStart[mCount] = mProcCount;
+    }
+
+    /**
+     * Add a sensor of the current uid, used for the given time at the given
+     * power.
+     */
+    void addSensor(long time, double power, boolean gps) {
+        if (mSensorCount == mSensorTime.length) {
+            final int size = mSensorCount*2;
+            mSensorTime = Arrays.copyOf(mSensorTime, size);
+            mSensorPower = Arrays.copyOf(mSensorPower, size);
+            mSensorGps = Arrays.copyOf(mSensorGps, size);
+        }
+        final int s = mSensorCount++;
+        mSensorTime[s] = time;
+        mSensorPower[s] = power;
+        mSensorGps[s] = gps;
+        mSensorStart[mCount] = mSensorCount;
+    }
+
+    /**
+     * Compute the power, in mAs, and times of every uid added since reset.
+     */
+    void compute() {
+        final double[] speedPower = mCpuSpeedPower;
+        final int steps = speedPower.length;
+        final long[] stepTimes = mProcStepTimes;
+        for (int i = 0; i < mCount; i++) {
+            double power = 0;
+            double highestDrain = 0;
+            int highestProc = -1;
+            long cpuTime = 0;
+            long cpuFgTime = 0;
+            long gpsTime = 0;
+
+            // Process CPU time, weighted by the time at each speed
+            for (int p = mProcStart[i], end = mProcStart[i+1]; p < end; p++) {
+                final long procCpuTime = mProcCpuTime[p];
+                final int base = p * steps;
+                long totalTimeAtSpeeds = 0;
+                for (int step = 0; step < steps; step++) {
+                    totalTimeAtSpeeds += stepTimes[base + step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                double processPower = 0;
+                for (int step = 0; step < steps; step++) {
+                    double ratio = (double) stepTimes[base + step] / totalTimeAtSpeeds;
+                    processPower += ratio * procCpuTime * speedPower[step];
+                }
+                cpuTime += procCpuTime;
+                cpuFgTime += mProcFgTime[p];
+                power += processPower;
+                if (highestProc < 0 || mProcNames[highestProc].startsWith("*")) {
+                    highestDrain = processPower;
+                    highestProc = p;
+                } else if (highestDrain < processPower && !mProcNames[p].startsWith("*")) {
+                    highestDrain = processPower;
+                    highestProc = p;
+                }
+            }
+            if (cpuFgTime > cpuTime) {
+                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+            }
+            power /= 1000;
+
+            // Add cost of holding a wake lock
+            power += (mWakeLockTime[i] * mCpuAwakePower) / 1000;
+
+            // Add cost of data traffic
+            power += (mTcpBytesReceived[i] + mTcpBytesSent[i]) * mCostPerByte;
+
+            // Add cost of keeping WIFI running.
+            power += (mWifiRunningTime[i] * mWifiOnPower) / 1000;
+
+            // Add cost of sensors
+            for (int s = mSensorStart[i], end = mSensorStart[i+1]; s < end; s++) {
+                if (mSensorGps[s]) {
+                    gpsTime = mSensorTime[s];
+                }
+                power += (mSensorPower[s] * mSensorTime[s]) / 1000;
+            }
+
+            mPower[i] = power;
+            mCpuTime[i] = cpuTime;
+            mCpuFgTime[i] = cpuFgTime;
+            mGpsTime[i] = gpsTime;
+            mHighestDrainProc[i] = highestProc;
+        }
+    }
+
+    /**
+     * Return the process of the given uid index that drained the most, or
+     * null if it had none.
+     */
+    String getPackageWithHighestDrain(int i) {
+        final int p = mHighestDrainProc[i];
+        return p >= 0 ? mProcNames[p] : null;
+    }
+
+    /**
+     * Return indexes of the at most {@code n} uids using the most power,
+     * highest first, leaving out the given uids.
+     */
+    int[] selectTop(int n, int excludedUid1, int excludedUid2) {
+        return selectTop(mPower, mUids, mCount, n, excludedUid1, excludedUid2);
+    }
+
+    /**
+     * Return indexes of the at most {@code n} highest of the first
+     * {@code count} powers, highest first, leaving out the given uids.
+     */
+    static int[] selectTop(double[] power, int[] uids, int count, int n,
+            int excludedUid1, int excludedUid2) {
+        final int[] top = new int[n];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            final int uid = uids[i];
+            if (uid == excludedUid1 || uid == excludedUid2) continue;
+            final double value = power[i];
+            if (size == n && value <= power[top[size-1]]) continue;
+
+            // Insertion into the short sorted list
+            int pos = size < n ? size++ : size-1;
+            while (pos > 0 && power[top[pos-1]] < value) {
+                top[pos] = top[pos-1];
+                pos--;
+            }
+            top[pos] = i;
+        }
+        return size == n ? top : Arrays.copyOf(top, size);
+    }
+}
@@ -25,8 +25,6 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Typeface;
-import android.os.BatteryStats;
-import android.os.SystemClock;
 import android.os.BatteryStats.HistoryItem;
 import android.telephony.ServiceState;
 import android.text.TextPaint;
@@ -34,6 +32,8 @@ import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
 
+import java.util.Arrays;
+
 public class BatteryHistoryChart extends View {
     static final int CHART_DATA_X_MASK = 0x0000ffff;
     static final int CHART_DATA_BIN_MASK = 0xffff0000;
@@ -133,7 +133,7 @@ public class BatteryHistoryChart extends View {
     
     int mFontSize;
     
-    BatteryStats mStats;
+    BatteryHistoryData mHistory;
     long mStatsPeriod;
     String mDurationString;
     String mTotalDurationString;
@@ -166,7 +166,6 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
     
-    int mNumHist;
     long mHistStart;
     long mHistEnd;
     int mBatLow;
@@ -174,6 +173,8 @@ public class BatteryHistoryChart extends View {
     boolean mHaveWifi;
     boolean mHaveGps;
     boolean mHavePhoneSignal;
+
+    final Columns mColumns = new Columns();
     
     public BatteryHistoryChart(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -334,12 +335,14 @@ public class BatteryHistoryChart extends View {
         }
     }
     
-    void setStats(BatteryStats stats) {
-        mStats = stats;
-        
-        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
-                BatteryStats.STATS_SINCE_CHARGED);
-        mStatsPeriod = uSecTime;
+    /**
+     * Show the given decoded history.  The chart draws nothing until it has
+     * one, so it can be bound before decoding finishes.
+     */
+    void setHistory(BatteryHistoryData history) {
+        mHistory = history;
+
+        mStatsPeriod = history.mStatsPeriod;
         String durationString = Utils.formatElapsedTime(getContext(), mStatsPeriod / 1000);
         mDurationString = getContext().getString(R.string.battery_stats_on_battery,
                 durationString);
@@ -350,46 +353,33 @@ public class BatteryHistoryChart extends View {
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
         
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+        mHistStart = history.mHistStart;
+        mHistEnd = history.mHistEnd;
+        mHaveGps = (history.mAggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (history.mAggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
-        if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart);
+        mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
+        mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
+
+        // Already laid out, so won't see onSizeChanged() for this history.
+        if (getWidth() > 0 && getHeight() > 0) {
+            buildPaths(getWidth(), getHeight());
+            invalidate();
+        }
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-        mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
-        mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
+        if (mHistory != null) {
+            mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
+            mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
+        }
         mTextAscent = (int)mTextPaint.ascent();
         mTextDescent = (int)mTextPaint.descent();
     }
@@ -432,7 +422,12 @@ public class BatteryHistoryChart extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        
+        if (mHistory != null) {
+            buildPaths(w, h);
+        }
+    }
+
+    void buildPaths(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         mThinLineWidth = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 2, getResources().getDisplayMetrics());
@@ -504,156 +499,245 @@ public class BatteryHistoryChart extends View {
         mWakeLockPath.reset();
         mChargingPath.reset();
         
-        final long timeStart = mHistStart;
-        final long timeChange = mHistEnd-mHistStart;
-        
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
         
         final int levelh = h - mLevelOffset - mLevelTop;
         mLevelBottom = mLevelTop + levelh;
         
+        reduceColumns(w);
+
         int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
+        final Columns cols = mColumns;
+        for (int c = 0; c < cols.count; c++) {
+            if (cols.breakBefore[c] && curLevelPath != null) {
+                finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                        lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                        lastWakeLock, lastLinePath);
+                lastX = lastY = -1;
+                curLevelPath = null;
+                lastLinePath = null;
+                lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
+            }
 
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
+            x = cols.x[c];
+
+            // Plot the extremes of the column, in the order they were reached.
+            final boolean falling = cols.lastLevel[c] <= cols.firstLevel[c];
+            for (int k = 0; k < 2; k++) {
+                final byte value = (falling == (k == 0)) ? cols.maxLevel[c] : cols.minLevel[c];
+                y = mLevelTop + levelh - ((value-batLow)*(levelh-1))/batChange;
+                if (lastY != y) {
+                    // Don't plot changes within a pixel.
+                    Path path;
+                    if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
+                    else if (value <= BATTERY_WARN) path = mBatWarnPath;
+                    else path = mBatGoodPath;
+
+                    if (path != lastLinePath) {
+                        if (lastLinePath != null) {
+                            lastLinePath.lineTo(x, y);
                         }
+                        path.moveTo(x, y);
+                        lastLinePath = path;
+                    } else {
+                        path.lineTo(x, y);
+                    }
 
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
-                            lastScreenOn = screenOn;
-                        }
+                    if (curLevelPath == null) {
+                        curLevelPath = mBatLevelPath;
+                        curLevelPath.moveTo(x, y);
+                        startX = x;
+                    } else {
+                        curLevelPath.lineTo(x, y);
+                    }
+                    lastX = x;
+                    lastY = y;
+                }
+            }
 
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
-                        }
+            // A state shows for the column if any record in it had it.
+            final int states = cols.orStates[c];
 
-                        final boolean wifiRunning =
-                            (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
+            final boolean charging =
+                (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+            if (charging != lastCharging) {
+                if (charging) {
+                    mChargingPath.moveTo(x, h-mChargingOffset);
+                } else {
+                    mChargingPath.lineTo(x, h-mChargingOffset);
+                }
+                lastCharging = charging;
+            }
 
-                        final boolean wakeLock =
-                            (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                        if (wakeLock != lastWakeLock) {
-                            if (wakeLock) {
-                                mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                            } else {
-                                mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                            }
-                            lastWakeLock = wakeLock;
-                        }
+            final boolean screenOn =
+                (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+            if (screenOn != lastScreenOn) {
+                if (screenOn) {
+                    mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                } else {
+                    mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                }
+                lastScreenOn = screenOn;
+            }
 
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
-                        }
-                    }
+            final boolean gpsOn =
+                (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+            if (gpsOn != lastGpsOn) {
+                if (gpsOn) {
+                    mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                } else {
+                    mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+                }
+                lastGpsOn = gpsOn;
+            }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
-                    }
+            final boolean wifiRunning =
+                (states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+            if (wifiRunning != lastWifiRunning) {
+                if (wifiRunning) {
+                    mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                } else {
+                    mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
+                }
+                lastWifiRunning = wifiRunning;
+            }
+
+            final boolean wakeLock =
+                (states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
+            if (wakeLock != lastWakeLock) {
+                if (wakeLock) {
+                    mWakeLockPath.moveTo(x, h-mWakeLockOffset);
+                } else {
+                    mWakeLockPath.lineTo(x, h-mWakeLockOffset);
                 }
-                
-                i++;
+                lastWakeLock = wakeLock;
+            }
+
+            if (mLargeMode && mHavePhoneSignal) {
+                // Signal is a level rather than a flag, so sample it.
+                final int firstStates = cols.firstStates[c];
+                int bin;
+                if (((firstStates&HistoryItem.STATE_PHONE_STATE_MASK)
+                        >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                        == ServiceState.STATE_POWER_OFF) {
+                    bin = 0;
+                } else if ((firstStates&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                    bin = 1;
+                } else {
+                    bin = (firstStates&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                            >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
+                    bin += 2;
+                }
+                mPhoneSignalChart.addTick(x, bin);
             }
         }
-        
+
         finishPaths(w, h, levelh, startX, lastY, curLevelPath, lastX,
                 lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
                 lastWakeLock, lastLinePath);
     }
-    
+
+    /**
+     * History reduced to one entry per pixel column, so that path building
+     * costs the same no matter how long the history is.  A new entry is also
+     * started after any record that interrupts the history, such as a reboot.
+     */
+    static final class Columns {
+        int count;
+        int[] x;
+        byte[] firstLevel;
+        byte[] lastLevel;
+        byte[] minLevel;
+        byte[] maxLevel;
+        int[] firstStates;
+        int[] orStates;
+        boolean[] breakBefore;
+
+        void reset(int capacity) {
+            count = 0;
+            if (x == null || x.length < capacity) {
+                x = new int[capacity];
+                firstLevel = new byte[capacity];
+                lastLevel = new byte[capacity];
+                minLevel = new byte[capacity];
+                maxLevel = new byte[capacity];
+                firstStates = new int[capacity];
+                orStates = new int[capacity];
+                breakBefore = new boolean[capacity];
+            }
+        }
+
+        void add(int col, byte level, int states, boolean brk) {
+            if (count == x.length) {
+                final int size = count*2;
+                x = Arrays.copyOf(x, size);
+                firstLevel = Arrays.copyOf(firstLevel, size);
+                lastLevel = Arrays.copyOf(lastLevel, size);
+                minLevel = Arrays.copyOf(minLevel, size);
+                maxLevel = Arrays.copyOf(maxLevel, size);
+                firstStates = Arrays.copyOf(firstStates, size);
+                orStates = Arrays.copyOf(orStates, size);
+                breakBefore = Arrays.copyOf(breakBefore, size);
+            }
+            x[count] = col;
+            firstLevel[count] = lastLevel[count] = minLevel[count] = maxLevel[count] = level;
+            firstStates[count] = orStates[count] = states;
+            breakBefore[count] = brk;
+            count++;
+        }
+
+        void fold(byte level, int states) {
+            final int c = count-1;
+            lastLevel[c] = level;
+            if (level < minLevel[c]) minLevel[c] = level;
+            if (level > maxLevel[c]) maxLevel[c] = level;
+            orStates[c] |= states;
+        }
+    }
+
+    /**
+     * Fold the decoded history into {@link #mColumns} for a chart of the
+     * given width, in a single pass.
+     */
+    void reduceColumns(int w) {
+        final Columns cols = mColumns;
+        cols.reset(w+2);
+
+        final long timeStart = mHistStart;
+        final long timeChange = mHistEnd-mHistStart;
+        boolean pendingBreak = false;
+        final BatteryHistoryData hist = mHistory;
+        final int N = hist.mCount;
+        final long[] times = hist.mTimes;
+        final byte[] cmds = hist.mCmds;
+        final byte[] levels = hist.mLevels;
+        final int[] states = hist.mStates;
+        for (int i = 0; i < N; i++) {
+            if (cmds[i] == HistoryItem.CMD_UPDATE) {
+                final int x = (int)(((times[i]-timeStart)*w)/timeChange);
+                if (cols.count == 0 || pendingBreak || cols.x[cols.count-1] != x) {
+                    cols.add(x, levels[i], states[i], pendingBreak);
+                    pendingBreak = false;
+                } else {
+                    cols.fold(levels[i], states[i]);
+                }
+            } else if (cols.count > 0) {
+                pendingBreak = true;
+            }
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (mHistory == null) {
+            return;
+        }
         
         final int width = getWidth();
         final int height = getHeight();
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.AsyncTask;
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Battery history decoded once into parallel arrays, holding only the
+ * records {@link BatteryHistoryChart} draws: updates, and the commands that
+ * interrupt the history between them.  The last decoded instance is shared,
+ * so the summary and the detail screen don't walk the same history twice.
+ */
+final class BatteryHistoryData {
+    int mCount;
+    long[] mTimes;
+    byte[] mCmds;
+    byte[] mLevels;
+    int[] mStates;
+
+    long mStatsPeriod;
+    long mHistStart;
+    long mHistEnd;
+    int mAggrStates;
+
+    interface Callback {
+        void onHistoryDecoded(BatteryHistoryData data);
+    }
+
+    private static final Object sLock = new Object();
+    private static WeakReference<BatteryStats> sSharedStats;
+    private static BatteryHistoryData sShared;
+    /** Key of the parcelled copy of {@link #sSharedStats}, or 0 if none. */
+    private static long sSharedParcelKey;
+
+    private BatteryHistoryData(int capacity) {
+        mTimes = new long[capacity];
+        mCmds = new byte[capacity];
+        mLevels = new byte[capacity];
+        mStates = new int[capacity];
+    }
+
+    /**
+     * Records that the given parcelled stats are a copy of the given stats,
+     * so that whoever unparcels them can reuse the shared history through
+     * {@link #getShared(byte[])}.
+     */
+    static void noteParcelled(BatteryStats stats, byte[] parcelled) {
+        final long key = keyOf(parcelled);
+        synchronized (sLock) {
+            if (sShared != null && sSharedStats.get() == stats) {
+                sSharedParcelKey = key;
+            }
+        }
+    }
+
+    /**
+     * Returns the shared history if it was decoded from the stats the given
+     * parcel was made of, or null.
+     */
+    static BatteryHistoryData getShared(byte[] parcelled) {
+        final long key = keyOf(parcelled);
+        synchronized (sLock) {
+            return sSharedParcelKey == key ? sShared : null;
+        }
+    }
+
+    private static long keyOf(byte[] parcelled) {
+        final CRC32 crc = new CRC32();
+        crc.update(parcelled);
+        // never 0, which stands for no key
+        return ((long) (parcelled.length + 1) << 32) | crc.getValue();
+    }
+
+    /**
+     * Returns the decoded history of the given stats, decoding it unless it
+     * is the one currently shared.  Walks the whole history, so call it off
+     * the main thread.
+     */
+    static BatteryHistoryData obtain(BatteryStats stats) {
+        synchronized (sLock) {
+            if (sShared != null && sSharedStats.get() == stats) {
+                return sShared;
+            }
+        }
+        BatteryHistoryData data = decode(stats);
+        synchronized (sLock) {
+            sSharedStats = new WeakReference<BatteryStats>(stats);
+            sShared = data;
+            sSharedParcelKey = 0;
+        }
+        return data;
+    }
+
+    /**
+     * Obtains the decoded history in the background, then calls back on the
+     * main thread.
+     */
+    static void obtainAsync(final BatteryStats stats, final Callback callback) {
+        new AsyncTask<Void, Void, BatteryHistoryData>() {
+            @Override
+            protected BatteryHistoryData doInBackground(Void... params) {
+                return obtain(stats);
+            }
+
+            @Override
+            protected void onPostExecute(BatteryHistoryData result) {
+                callback.onHistoryDecoded(result);
+            }
+        }.execute();
+    }
+
+    private static BatteryHistoryData decode(BatteryStats stats) {
+        BatteryHistoryData data = new BatteryHistoryData(256);
+        data.mStatsPeriod = stats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
+                BatteryStats.STATS_SINCE_CHARGED);
+
+        int lastInteresting = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                    if (first) {
+                        first = false;
+                        data.mHistStart = rec.time;
+                    }
+                    data.add(rec);
+                    lastInteresting = data.mCount;
+                    data.mHistEnd = rec.time;
+                    data.mAggrStates |= rec.states;
+                } else if (rec.cmd != HistoryItem.CMD_OVERFLOW && !first) {
+                    data.add(rec);
+                }
+            }
+        }
+
+        // Nothing after the last update is drawn.
+        data.mCount = lastInteresting;
+        if (data.mHistEnd <= data.mHistStart) data.mHistEnd = data.mHistStart+1;
+        return data;
+    }
+
+    private void add(HistoryItem rec) {
+        if (mCount == mTimes.length) {
+            final int size = mCount*2;
+            mTimes = Arrays.copyOf(mTimes, size);
+            mCmds = Arrays.copyOf(mCmds, size);
+            mLevels = Arrays.copyOf(mLevels, size);
+            mStates = Arrays.copyOf(mStates, size);
+        }
+        mTimes[mCount] = rec.time;
+        mCmds[mCount] = rec.cmd;
+        mLevels[mCount] = rec.batteryLevel;
+        mStates[mCount] = rec.states;
+        mCount++;
+    }
+}
@@ -30,11 +30,18 @@ public class BatteryHistoryDetail extends Fragment {
     public static final String EXTRA_STATS = "stats";
 
     private BatteryStatsImpl mStats;
+    private BatteryHistoryData mHistory;
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         byte[] data = getArguments().getByteArray(EXTRA_STATS);
+        // Reuse the history the summary already decoded from these stats,
+        // if still around.
+        mHistory = BatteryHistoryData.getShared(data);
+        if (mHistory != null) {
+            return;
+        }
         Parcel parcel = Parcel.obtain();
         parcel.unmarshall(data, 0, data.length);
         parcel.setDataPosition(0);
@@ -45,9 +52,19 @@ public class BatteryHistoryDetail extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.preference_batteryhistory, null);
-        BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
+        final BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        if (mHistory != null) {
+            chart.setHistory(mHistory);
+        } else {
+            BatteryHistoryData.obtainAsync(mStats, new BatteryHistoryData.Callback() {
+                @Override
+                public void onHistoryDecoded(BatteryHistoryData data) {
+                    mHistory = data;
+                    chart.setHistory(data);
+                }
+            });
+        }
         return view;
     }
 }
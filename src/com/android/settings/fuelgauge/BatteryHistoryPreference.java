@@ -34,6 +34,8 @@ import com.android.settings.R;
 public class BatteryHistoryPreference extends Preference {
 
     private BatteryStats mStats;
+    private BatteryHistoryData mHistory;
+    private boolean mDecoding;
 
     public BatteryHistoryPreference(Context context, BatteryStats stats) {
         super(context);
@@ -51,6 +53,18 @@ public class BatteryHistoryPreference extends Preference {
 
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        if (mHistory != null) {
+            chart.setHistory(mHistory);
+        } else if (!mDecoding) {
+            // Decode off the main thread, and bind again once done.
+            mDecoding = true;
+            BatteryHistoryData.obtainAsync(mStats, new BatteryHistoryData.Callback() {
+                @Override
+                public void onHistoryDecoded(BatteryHistoryData data) {
+                    mHistory = data;
+                    notifyChanged();
+                }
+            });
+        }
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.android.settings.fuelgauge;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
@@ -24,18 +25,21 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.BatteryStats.Uid;
-
-import java.util.ArrayList;
-import java.util.HashMap;
+import android.util.LruCache;
 
 class BatterySipper implements Comparable<BatterySipper> {
+    /**
+     * Names already found, shared so they outlive the screen.  Holds no
+     * drawables, which would keep the first screen's context alive; icons
+     * come from {@link AppIconCache} on each lookup.
+     */
+    private static final LruCache<Integer,UidToDetail> sUidCache =
+            new LruCache<Integer,UidToDetail>(64);
+
     final Context mContext;
-    final HashMap<String,UidToDetail> mUidCache = new HashMap<String,UidToDetail>();
-    final ArrayList<BatterySipper> mRequestQueue;
-    final Handler mHandler;
     String name;
+    boolean needsNameIcon; // Quick lookup wasn't enough, see getNameIcon().
     Drawable icon;
     int iconId; // For passing to the detail screen.
     Uid uidObj;
@@ -57,15 +61,13 @@ class BatterySipper implements Comparable<BatterySipper> {
     static class UidToDetail {
         String name;
         String packageName;
-        Drawable icon;
+        // The app whose icon is shown, or null for the default icon.
+        ApplicationInfo iconInfo;
     }
 
-    BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
-            Handler handler, String label, DrainType drainType,
+    BatterySipper(Context context, String label, DrainType drainType,
             int iconId, Uid uid, double[] values) {
         mContext = context;
-        mRequestQueue = requestQueue;
-        mHandler = handler;
         this.values = values;
         name = label;
         this.drainType = drainType;
@@ -98,12 +100,13 @@ class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (mUidCache.containsKey(uidString)) {
-            UidToDetail utd = mUidCache.get(uidString);
+        final UidToDetail utd = sUidCache.get(uid);
+        if (utd != null) {
             defaultPackageName = utd.packageName;
             name = utd.name;
-            icon = utd.icon;
+            icon = utd.iconInfo != null
+                    ? AppIconCache.getInstance(mContext).getIcon(utd.iconInfo)
+                    : mContext.getPackageManager().getDefaultActivityIcon();
             return;
         }
         PackageManager pm = mContext.getPackageManager();
@@ -123,25 +126,25 @@ class BatterySipper implements Comparable<BatterySipper> {
         } else {
             //name = packages[0];
         }
-        synchronized (mRequestQueue) {
-            mRequestQueue.add(this);
-        }
+        needsNameIcon = true;
     }
 
     /**
      * Sets name and icon
-     * @param uid Uid of the application
+     * @return true if a name and icon were found for the uid
      */
-    void getNameIcon() {
+    boolean getNameIcon() {
         PackageManager pm = mContext.getPackageManager();
         final int uid = uidObj.getUid();
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
         String[] packages = pm.getPackagesForUid(uid);
+        needsNameIcon = false;
         if (packages == null) {
             name = Integer.toString(uid);
-            return;
+            return false;
         }
 
+        ApplicationInfo iconInfo = null;
         String[] packageLabels = new String[packages.length];
         System.arraycopy(packages, 0, packageLabels, 0, packages.length);
 
@@ -158,7 +161,8 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = packages[i];
-                    icon = ai.loadIcon(pm);
+                    iconInfo = ai;
+                    icon = AppIconCache.getInstance(mContext).getIcon(ai);
                     break;
                 }
             } catch (NameNotFoundException e) {
@@ -180,7 +184,9 @@ class BatterySipper implements Comparable<BatterySipper> {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                iconInfo = pi.applicationInfo;
+                                icon = AppIconCache.getInstance(mContext).getIcon(
+                                        pi.applicationInfo);
                             }
                             break;
                         }
@@ -189,12 +195,11 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
             }
         }
-        final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
-        utd.icon = icon;
+        utd.iconInfo = iconInfo;
         utd.packageName = defaultPackageName;
-        mUidCache.put(uidString, utd);
-        mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
+        sUidCache.put(uid, utd);
+        return true;
     }
 }
\ No newline at end of file
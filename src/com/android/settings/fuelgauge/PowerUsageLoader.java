@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.telephony.SignalStrength;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.R;
+import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
+import com.android.settings.fuelgauge.UsageSnapshots.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loader that fetches and parses battery statistics, then computes the power
+ * used by each app and subsystem, all off the main thread.  Keeps the parsed
+ * statistics and the last result, so that switching the stats type doesn't
+ * fetch again and re-entering the screen shows the last result right away.
+ */
+class PowerUsageLoader extends AsyncTaskLoader<PowerUsageResult> {
+    private static final boolean DEBUG = false;
+
+    private static final String TAG = "PowerUsageLoader";
+
+    private static final int MIN_POWER_THRESHOLD = 5;
+    private static final int MAX_ITEMS_TO_LIST = 10;
+
+    private final Context mContext;
+    private final IBatteryStats mBatteryInfo;
+    private PowerProfile mPowerProfile;
+
+    private volatile int mRequestedType;
+    private volatile long mDeltaWindow;
+    // Bumped whenever a load is canceled, so the load running then gives
+    // up while one started afterwards does not.
+    private volatile int mLoadGeneration;
+    // Whether a load was canceled since a result was last delivered.
+    private volatile boolean mPendingLoad;
+
+    /** Statistics last parsed, reused until {@link #refresh()}. */
+    private BatteryStatsImpl mLoadedStats;
+    private PowerUsageResult mResult;
+
+    // State of the computation running in the background.
+    private BatteryStatsImpl mStats;
+    private int mStatsType;
+    private final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
+    private final AppPowerCalculator mCalculator = new AppPowerCalculator();
+    private long mStatsPeriod = 0;
+    private double mMaxPower = 1;
+    private double mTotalPower;
+    private double mWifiPower;
+    private double mBluetoothPower;
+
+    // How much the apps together have left WIFI running.
+    private long mAppWifiRunning;
+
+    // The OS uid, and the wake time assigned to it beyond its wake locks.
+    private int mOsIndex;
+    private long mOsWakeTime;
+
+    PowerUsageLoader(Context context, int statsType) {
+        super(context);
+        mContext = getContext();
+        mBatteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mRequestedType = statsType;
+    }
+
+    /**
+     * Recompute usage for another stats type, from the same statistics.
+     */
+    void setStatsType(int statsType) {
+        mRequestedType = statsType;
+        forceLoad();
+    }
+
+    /**
+     * Show only usage of the given recent window, in ms, or totals if 0.
+     * Usage over a window comes from snapshots of earlier loads, so the
+     * window fills in as the screen keeps refreshing.
+     */
+    void setDeltaWindow(long window) {
+        mDeltaWindow = window;
+        refresh();
+    }
+
+    /**
+     * Fetch fresh statistics and recompute usage.
+     */
+    void refresh() {
+        synchronized (this) {
+            mLoadedStats = null;
+        }
+        forceLoad();
+    }
+
+    /**
+     * Start loading again if the last load was canceled before finishing.
+     */
+    void resumeLoading() {
+        if (mPendingLoad) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mResult = null;
+    }
+
+    @Override
+    protected boolean onCancelLoad() {
+        final boolean canceled = super.onCancelLoad();
+        if (canceled) {
+            mLoadGeneration++;
+            mPendingLoad = true;
+        }
+        return canceled;
+    }
+
+    @Override
+    public void deliverResult(PowerUsageResult result) {
+        // A failed load keeps the last result showing.
+        if (result != null) {
+            mResult = result;
+            mPendingLoad = false;
+        }
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    public PowerUsageResult loadInBackground() {
+        final int generation = mLoadGeneration;
+        // Snapshots are only comparable since charged.
+        final long deltaWindow = mDeltaWindow;
+        final int statsType = deltaWindow > 0 ? BatteryStats.STATS_SINCE_CHARGED
+                : mRequestedType;
+        BatteryStatsImpl stats;
+        synchronized (this) {
+            stats = mLoadedStats;
+        }
+        final boolean fresh = stats == null || deltaWindow > 0;
+        if (fresh) {
+            stats = load(generation);
+            if (stats == null || generation != mLoadGeneration) return null;
+            synchronized (this) {
+                mLoadedStats = stats;
+            }
+        }
+        if (mPowerProfile == null) {
+            mPowerProfile = new PowerProfile(mContext);
+        }
+
+        mStats = stats;
+        mStatsType = statsType;
+        mStatsPeriod = 0;
+        mMaxPower = 0;
+        mTotalPower = 0;
+        mWifiPower = 0;
+        mBluetoothPower = 0;
+        mAppWifiRunning = 0;
+        mUsageList.clear();
+
+        final ArrayList<BatterySipper> shown = new ArrayList<BatterySipper>();
+        if (mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
+            return new PowerUsageResult(stats, statsType, mStatsPeriod, mTotalPower, mMaxPower,
+                    false, shown);
+        }
+        processAppUsage();
+        if (generation != mLoadGeneration) return null;
+
+        if (fresh && statsType == BatteryStats.STATS_SINCE_CHARGED) {
+            UsageSnapshots.getInstance().record(SystemClock.elapsedRealtime(), mStatsPeriod,
+                    mCalculator);
+        }
+        if (deltaWindow > 0) {
+            final Snapshot baseline = UsageSnapshots.getInstance().getBaseline(
+                    SystemClock.elapsedRealtime() - deltaWindow);
+            return buildDeltaResult(baseline);
+        }
+
+        addAppSippers();
+        processMiscUsage();
+
+        Collections.sort(mUsageList);
+        for (BatterySipper sipper : mUsageList) {
+            if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
+            final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
+            if (percentOfTotal < 1) continue;
+            sipper.percent = percentOfTotal;
+            shown.add(sipper);
+            if (shown.size() >= MAX_ITEMS_TO_LIST) break;
+        }
+        return new PowerUsageResult(stats, statsType, mStatsPeriod, mTotalPower, mMaxPower,
+                true, shown);
+    }
+
+    private void processAppUsage() {
+        SensorManager sensorManager = (SensorManager)mContext.getSystemService(
+                Context.SENSOR_SERVICE);
+        final int which = mStatsType;
+        final int speedSteps = mPowerProfile.getNumSpeedSteps();
+        final double[] powerCpuNormal = new double[speedSteps];
+        final long[] cpuSpeedStepTimes = new long[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        final double averageCostPerByte = getAverageDataCost();
+        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
+        mStatsPeriod = uSecTime;
+
+        // Gather counters of every uid, then compute power for all at once.
+        final AppPowerCalculator calc = mCalculator;
+        calc.reset(powerCpuNormal, mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE),
+                mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON), averageCostPerByte);
+        final double gpsPower = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
+        SparseArray<? extends Uid> uidStats = mStats.getUidStats();
+        final int NU = uidStats.size();
+        for (int iu = 0; iu < NU; iu++) {
+            Uid u = uidStats.valueAt(iu);
+
+            // Process wake lock usage
+            long wakelockTime = 0;
+            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                    : wakelockStats.entrySet()) {
+                Uid.Wakelock wakelock = wakelockEntry.getValue();
+                // Only care about partial wake locks since full wake locks
+                // are canceled when the user turns the screen off.
+                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+                if (timer != null) {
+                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+                }
+            }
+            wakelockTime /= 1000; // convert to millis
+
+            calc.beginUid(u.getUid(), wakelockTime, u.getTcpBytesReceived(which),
+                    u.getTcpBytesSent(which), u.getWifiRunningTime(uSecTime, which) / 1000);
+
+            // Process CPU time
+            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                if (DEBUG) Log.i(TAG, "Process name = " + ent.getKey());
+                Uid.Proc ps = ent.getValue();
+                for (int step = 0; step < speedSteps; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                }
+                calc.addProcess(ent.getKey(),
+                        (ps.getUserTime(which) + ps.getSystemTime(which)) * 10, // to millis
+                        ps.getForegroundTime(which) * 10, cpuSpeedStepTimes);
+            }
+
+            // Process Sensor usage
+            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                    : sensorStats.entrySet()) {
+                Uid.Sensor sensor = sensorEntry.getValue();
+                int sensorType = sensor.getHandle();
+                BatteryStats.Timer timer = sensor.getSensorTime();
+                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+                if (sensorType == Uid.Sensor.GPS) {
+                    calc.addSensor(sensorTime, gpsPower, true);
+                } else {
+                    double multiplier = 0;
+                    android.hardware.Sensor sensorData =
+                            sensorManager.getDefaultSensor(sensorType);
+                    if (sensorData != null) {
+                        multiplier = sensorData.getPower();
+                        if (DEBUG) {
+                            Log.i(TAG, "Got sensor " + sensorData.getName() + " with power = "
+                                    + multiplier);
+                        }
+                    }
+                    calc.addSensor(sensorTime, multiplier, false);
+                }
+            }
+        }
+        calc.compute();
+
+        long appWakelockTime = 0;
+        int osIndex = -1;
+        long osWakeTimeMillis = 0;
+        for (int i = 0; i < calc.mCount; i++) {
+            final int uid = calc.mUids[i];
+            final double power = calc.mPower[i];
+            if (DEBUG) Log.i(TAG, "UID " + uid + ": power=" + power);
+            appWakelockTime += calc.mWakeLockTime[i];
+            mAppWifiRunning += calc.mWifiRunningTime[i];
+            if (uid == Process.WIFI_UID) {
+                mWifiPower += power;
+            } else if (uid == Process.BLUETOOTH_GID) {
+                mBluetoothPower += power;
+            } else {
+                if (power > mMaxPower) mMaxPower = power;
+                mTotalPower += power;
+            }
+            if (uid == 0) {
+                osIndex = i;
+            }
+        }
+
+        // The device has probably been awake for longer than the screen on
+        // time and application wake lock time would account for.  Assign
+        // this remainder to the OS, if possible.
+        if (osIndex >= 0) {
+            long wakeTimeMillis = mStats.computeBatteryUptime(
+                    SystemClock.uptimeMillis() * 1000, which) / 1000;
+            wakeTimeMillis -= appWakelockTime + (mStats.getScreenOnTime(
+                    SystemClock.elapsedRealtime(), which) / 1000);
+            if (wakeTimeMillis > 0) {
+                double power = (wakeTimeMillis
+                        * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
+                if (DEBUG) Log.i(TAG, "OS wakeLockTime " + wakeTimeMillis + " power " + power);
+                osWakeTimeMillis = wakeTimeMillis;
+                calc.mPower[osIndex] += power;
+                if (calc.mPower[osIndex] > mMaxPower) mMaxPower = calc.mPower[osIndex];
+                mTotalPower += power;
+            }
+        }
+
+        mOsIndex = osIndex;
+        mOsWakeTime = osWakeTimeMillis;
+    }
+
+    private void addAppSippers() {
+        final AppPowerCalculator calc = mCalculator;
+        final SparseArray<? extends Uid> uidStats = mStats.getUidStats();
+
+        // Only apps that can make the list need a sipper: an app outside
+        // the top apps can't be among the top entries overall.
+        final int[] top = calc.selectTop(MAX_ITEMS_TO_LIST, Process.WIFI_UID,
+                Process.BLUETOOTH_GID);
+        for (int i : top) {
+            final int uid = calc.mUids[i];
+            final double power = calc.mPower[i];
+            if (power == 0 && uid != 0) continue;
+            BatterySipper app = new BatterySipper(mContext, calc.getPackageWithHighestDrain(i),
+                    DrainType.APP, 0, uidStats.valueAt(i), new double[] {power});
+            app.cpuTime = calc.mCpuTime[i];
+            app.gpsTime = calc.mGpsTime[i];
+            app.wifiRunningTime = calc.mWifiRunningTime[i];
+            app.cpuFgTime = calc.mCpuFgTime[i];
+            app.wakeLockTime = calc.mWakeLockTime[i];
+            app.tcpBytesReceived = calc.mTcpBytesReceived[i];
+            app.tcpBytesSent = calc.mTcpBytesSent[i];
+            if (i == mOsIndex) {
+                app.wakeLockTime += mOsWakeTime;
+            }
+            mUsageList.add(app);
+        }
+    }
+
+    /**
+     * Build a result from the usage of apps since the given snapshot, only
+     * listing apps since the other subsystems aren't snapshotted.
+     */
+    private PowerUsageResult buildDeltaResult(Snapshot baseline) {
+        final AppPowerCalculator calc = mCalculator;
+        final SparseArray<? extends Uid> uidStats = mStats.getUidStats();
+        final int N = calc.mCount;
+        final double[] power = new double[N];
+        final int[] baseIndex = new int[N];
+        double totalPower = 0;
+        double maxPower = 0;
+        for (int i = 0; i < N; i++) {
+            final int j = baseline.indexOf(calc.mUids[i]);
+            baseIndex[i] = j;
+            power[i] = j >= 0 ? calc.mPower[i] - baseline.power[j] : calc.mPower[i];
+            if (power[i] < 0) power[i] = 0;
+            final int uid = calc.mUids[i];
+            if (uid == Process.WIFI_UID || uid == Process.BLUETOOTH_GID) continue;
+            totalPower += power[i];
+            if (power[i] > maxPower) maxPower = power[i];
+        }
+
+        final ArrayList<BatterySipper> shown = new ArrayList<BatterySipper>();
+        // WIFI and Bluetooth uids are left out, as in processAppUsage() and
+        // addAppSippers()
+        final int[] top = AppPowerCalculator.selectTop(power, calc.mUids, N, MAX_ITEMS_TO_LIST,
+                Process.WIFI_UID, Process.BLUETOOTH_GID);
+        for (int i : top) {
+            if (power[i] < MIN_POWER_THRESHOLD) continue;
+            final double percentOfTotal = (power[i] / totalPower) * 100;
+            if (percentOfTotal < 1) continue;
+            BatterySipper app = new BatterySipper(mContext, calc.getPackageWithHighestDrain(i),
+                    DrainType.APP, 0, uidStats.valueAt(i), new double[] {power[i]});
+            final int j = baseIndex[i];
+            app.cpuTime = delta(calc.mCpuTime[i], baseline, j, UsageSnapshots.CPU_TIME);
+            app.cpuFgTime = delta(calc.mCpuFgTime[i], baseline, j, UsageSnapshots.CPU_FG_TIME);
+            app.wakeLockTime = delta(calc.mWakeLockTime[i], baseline, j,
+                    UsageSnapshots.WAKE_LOCK_TIME);
+            app.gpsTime = delta(calc.mGpsTime[i], baseline, j, UsageSnapshots.GPS_TIME);
+            app.wifiRunningTime = delta(calc.mWifiRunningTime[i], baseline, j,
+                    UsageSnapshots.WIFI_RUNNING_TIME);
+            app.tcpBytesReceived = delta(calc.mTcpBytesReceived[i], baseline, j,
+                    UsageSnapshots.TCP_BYTES_RECEIVED);
+            app.tcpBytesSent = delta(calc.mTcpBytesSent[i], baseline, j,
+                    UsageSnapshots.TCP_BYTES_SENT);
+            app.percent = percentOfTotal;
+            shown.add(app);
+        }
+        return new PowerUsageResult(mStats, BatteryStats.STATS_SINCE_CHARGED,
+                mStatsPeriod - baseline.batteryRealtime, totalPower, maxPower, true, shown);
+    }
+
+    private static long delta(long value, Snapshot baseline, int index, int counter) {
+        if (index < 0) return value;
+        final long delta = value - baseline.counters[index * UsageSnapshots.NUM_COUNTERS + counter];
+        return delta > 0 ? delta : 0;
+    }
+
+    private void addPhoneUsage(long uSecNow) {
+        long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mStatsType) / 1000;
+        double phoneOnPower = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
+                * phoneOnTimeMs / 1000;
+        addEntry(mContext.getString(R.string.power_phone), DrainType.PHONE, phoneOnTimeMs,
+                R.drawable.ic_settings_voice_calls, phoneOnPower);
+    }
+
+    private void addScreenUsage(long uSecNow) {
+        double power = 0;
+        long screenOnTimeMs = mStats.getScreenOnTime(uSecNow, mStatsType) / 1000;
+        power += screenOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_ON);
+        final double screenFullPower =
+                mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+        for (int i = 0; i < BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS; i++) {
+            double screenBinPower = screenFullPower * (i + 0.5f)
+                    / BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS;
+            long brightnessTime = mStats.getScreenBrightnessTime(i, uSecNow, mStatsType) / 1000;
+            power += screenBinPower * brightnessTime;
+            if (DEBUG) {
+                Log.i(TAG, "Screen bin power = " + (int) screenBinPower + ", time = "
+                        + brightnessTime);
+            }
+        }
+        power /= 1000; // To seconds
+        addEntry(mContext.getString(R.string.power_screen), DrainType.SCREEN, screenOnTimeMs,
+                R.drawable.ic_settings_display, power);
+    }
+
+    private void addRadioUsage(long uSecNow) {
+        double power = 0;
+        final int BINS = SignalStrength.NUM_SIGNAL_STRENGTH_BINS;
+        long signalTimeMs = 0;
+        for (int i = 0; i < BINS; i++) {
+            long strengthTimeMs = mStats.getPhoneSignalStrengthTime(i, uSecNow, mStatsType) / 1000;
+            power += strengthTimeMs / 1000
+                    * mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ON, i);
+            signalTimeMs += strengthTimeMs;
+        }
+        long scanningTimeMs = mStats.getPhoneSignalScanningTime(uSecNow, mStatsType) / 1000;
+        power += scanningTimeMs / 1000 * mPowerProfile.getAveragePower(
+                PowerProfile.POWER_RADIO_SCANNING);
+        BatterySipper bs =
+                addEntry(mContext.getString(R.string.power_cell), DrainType.CELL,
+                        signalTimeMs, R.drawable.ic_settings_cell_standby, power);
+        if (signalTimeMs != 0) {
+            bs.noCoveragePercent = mStats.getPhoneSignalStrengthTime(0, uSecNow, mStatsType)
+                    / 1000 * 100.0 / signalTimeMs;
+        }
+    }
+
+    private void aggregateSippers(BatterySipper bs, int uid, String tag) {
+        final AppPowerCalculator calc = mCalculator;
+        for (int i = 0; i < calc.mCount; i++) {
+            // Same as sippers of apps, only uids using power count.
+            if (calc.mUids[i] != uid || calc.mPower[i] == 0) continue;
+            if (DEBUG) Log.i(TAG, tag + " adding uid " + uid + ": cpu=" + calc.mCpuTime[i]);
+            bs.cpuTime += calc.mCpuTime[i];
+            bs.gpsTime += calc.mGpsTime[i];
+            bs.wifiRunningTime += calc.mWifiRunningTime[i];
+            bs.cpuFgTime += calc.mCpuFgTime[i];
+            bs.wakeLockTime += calc.mWakeLockTime[i];
+            bs.tcpBytesReceived += calc.mTcpBytesReceived[i];
+            bs.tcpBytesSent += calc.mTcpBytesSent[i];
+        }
+    }
+
+    private void addWiFiUsage(long uSecNow) {
+        long onTimeMs = mStats.getWifiOnTime(uSecNow, mStatsType) / 1000;
+        long runningTimeMs = mStats.getGlobalWifiRunningTime(uSecNow, mStatsType) / 1000;
+        if (DEBUG) Log.i(TAG, "WIFI runningTime=" + runningTimeMs
+                + " app runningTime=" + mAppWifiRunning);
+        runningTimeMs -= mAppWifiRunning;
+        if (runningTimeMs < 0) runningTimeMs = 0;
+        double wifiPower = (onTimeMs * 0 /* TODO */
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)
+            + runningTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
+        if (DEBUG) Log.i(TAG, "WIFI power=" + wifiPower + " from procs=" + mWifiPower);
+        BatterySipper bs = addEntry(mContext.getString(R.string.power_wifi), DrainType.WIFI,
+                runningTimeMs, R.drawable.ic_settings_wifi, wifiPower + mWifiPower);
+        aggregateSippers(bs, Process.WIFI_UID, "WIFI");
+    }
+
+    private void addIdleUsage(long uSecNow) {
+        long idleTimeMs = (uSecNow - mStats.getScreenOnTime(uSecNow, mStatsType)) / 1000;
+        double idlePower = (idleTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_IDLE))
+                / 1000;
+        addEntry(mContext.getString(R.string.power_idle), DrainType.IDLE, idleTimeMs,
+                R.drawable.ic_settings_phone_idle, idlePower);
+    }
+
+    private void addBluetoothUsage(long uSecNow) {
+        long btOnTimeMs = mStats.getBluetoothOnTime(uSecNow, mStatsType) / 1000;
+        double btPower = btOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_ON)
+                / 1000;
+        int btPingCount = mStats.getBluetoothPingCount();
+        btPower += (btPingCount
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_AT_CMD)) / 1000;
+        BatterySipper bs = addEntry(mContext.getString(R.string.power_bluetooth),
+                DrainType.BLUETOOTH, btOnTimeMs, R.drawable.ic_settings_bluetooth,
+                btPower + mBluetoothPower);
+        aggregateSippers(bs, Process.BLUETOOTH_GID, "Bluetooth");
+    }
+
+    private double getAverageDataCost() {
+        final long WIFI_BPS = 1000000; // TODO: Extract average bit rates from system 
+        final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
+        final double WIFI_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ACTIVE)
+                / 3600;
+        final double MOBILE_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
+                / 3600;
+        final long mobileData = mStats.getMobileTcpBytesReceived(mStatsType) +
+                mStats.getMobileTcpBytesSent(mStatsType);
+        final long wifiData = mStats.getTotalTcpBytesReceived(mStatsType) +
+                mStats.getTotalTcpBytesSent(mStatsType) - mobileData;
+        final long radioDataUptimeMs = mStats.getRadioDataUptime() / 1000;
+        final long mobileBps = radioDataUptimeMs != 0
+                ? mobileData * 8 * 1000 / radioDataUptimeMs
+                : MOBILE_BPS;
+
+        double mobileCostPerByte = MOBILE_POWER / (mobileBps / 8);
+        double wifiCostPerByte = WIFI_POWER / (WIFI_BPS / 8);
+        if (wifiData + mobileData != 0) {
+            return (mobileCostPerByte * mobileData + wifiCostPerByte * wifiData)
+                    / (mobileData + wifiData);
+        } else {
+            return 0;
+        }
+    }
+
+    private void processMiscUsage() {
+        final int which = mStatsType;
+        long uSecTime = SystemClock.elapsedRealtime() * 1000;
+        final long uSecNow = mStats.computeBatteryRealtime(uSecTime, which);
+        final long timeSinceUnplugged = uSecNow;
+        if (DEBUG) {
+            Log.i(TAG, "Uptime since last unplugged = " + (timeSinceUnplugged / 1000));
+        }
+
+        addPhoneUsage(uSecNow);
+        addScreenUsage(uSecNow);
+        addWiFiUsage(uSecNow);
+        addBluetoothUsage(uSecNow);
+        addIdleUsage(uSecNow); // Not including cellular idle power
+        // Don't compute radio usage if it's a wifi-only device
+        if (!com.android.settings.Utils.isWifiOnly(mContext)) {
+            addRadioUsage(uSecNow);
+        }
+    }
+
+    private BatterySipper addEntry(String label, DrainType drainType, long time, int iconId,
+            double power) {
+        if (power > mMaxPower) mMaxPower = power;
+        mTotalPower += power;
+        BatterySipper bs = new BatterySipper(mContext, label, drainType, iconId, null, new double[] {power});
+        bs.usageTime = time;
+        bs.iconId = iconId;
+        mUsageList.add(bs);
+        return bs;
+    }
+
+    private BatteryStatsImpl load(int generation) {
+        try {
+            byte[] data = mBatteryInfo.getStatistics();
+            if (generation != mLoadGeneration) return null;
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+}
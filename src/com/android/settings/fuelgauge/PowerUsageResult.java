@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import com.android.internal.os.BatteryStatsImpl;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Power usage computed by {@link PowerUsageLoader}, ready to bind.
+ */
+final class PowerUsageResult {
+    final BatteryStatsImpl stats;
+    final int statsType;
+    final long statsPeriod;
+    final double totalPower;
+    final double maxPower;
+    /** False when the power profile is too incomplete to compute usage. */
+    final boolean available;
+    /** Sippers to list, sorted by power and with their percent set. */
+    final List<BatterySipper> usageList;
+
+    PowerUsageResult(BatteryStatsImpl stats, int statsType, long statsPeriod,
+            double totalPower, double maxPower, boolean available,
+            List<BatterySipper> usageList) {
+        this.stats = stats;
+        this.statsType = statsType;
+        this.statsPeriod = statsPeriod;
+        this.totalPower = totalPower;
+        this.maxPower = maxPower;
+        this.available = available;
+        this.usageList = Collections.unmodifiableList(usageList);
+    }
+}
@@ -16,11 +16,12 @@
 
 package com.android.settings.fuelgauge;
 
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.SensorManager;
+import android.content.Loader;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
@@ -28,40 +29,36 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.Process;
-import android.os.RemoteException;
-import android.os.ServiceManager;
-import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
-import android.telephony.SignalStrength;
-import android.util.Log;
-import android.util.SparseArray;
+import android.text.format.DateUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
-import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsImpl;
-import com.android.internal.os.PowerProfile;
 import com.android.settings.R;
-import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
  * consumed since the last time it was unplugged.
  */
-public class PowerUsageSummary extends PreferenceFragment implements Runnable {
+public class PowerUsageSummary extends PreferenceFragment {
 
     private static final boolean DEBUG = false;
 
@@ -69,40 +66,65 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
     private static final String KEY_APP_LIST = "app_list";
     private static final String KEY_BATTERY_STATUS = "battery_status";
+    private static final String KEY_DELTA_MODE = "delta_mode";
 
     private static final int MENU_STATS_TYPE = Menu.FIRST;
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
+    private static final int MENU_STATS_RECENT = Menu.FIRST + 2;
 
-    private static BatteryStatsImpl sStatsXfer;
+    /** Window shown in delta mode, and how often it is refreshed. */
+    private static final long DELTA_WINDOW = 15 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long DELTA_REFRESH_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final int LOADER_POWER_USAGE = 1;
 
-    IBatteryStats mBatteryInfo;
     BatteryStatsImpl mStats;
-    private final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
-    private final List<BatterySipper> mWifiSippers = new ArrayList<BatterySipper>();
-    private final List<BatterySipper> mBluetoothSippers = new ArrayList<BatterySipper>();
+    private PowerUsageResult mResult;
 
     private PreferenceGroup mAppListGroup;
     private Preference mBatteryStatusPref;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
-    private static final int MIN_POWER_THRESHOLD = 5;
-    private static final int MAX_ITEMS_TO_LIST = 10;
+    /** Showing only usage of the recent {@link #DELTA_WINDOW}. */
+    private boolean mDeltaMode;
+
+    /** Maximum number of threads fetching names and icons at once. */
+    private static final int MAX_NAME_ICON_WORKERS = 2;
 
-    private long mStatsPeriod = 0;
-    private double mMaxPower = 1;
-    private double mTotalPower;
-    private double mWifiPower;
-    private double mBluetoothPower;
-    private PowerProfile mPowerProfile;
+    /** Delay that gathers name and icon updates into one, about a frame. */
+    private static final long NAME_ICON_BATCH_DELAY = 16;
 
-    // How much the apps together have left WIFI running.
-    private long mAppWifiRunning;
+    private static final ThreadPoolExecutor sNameIconExecutor = new ThreadPoolExecutor(
+            MAX_NAME_ICON_WORKERS, MAX_NAME_ICON_WORKERS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    return new Thread("BatteryUsage Icon Loader #" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    static {
+        sNameIconExecutor.allowCoreThreadTimeOut(true);
+    }
 
-    /** Queue for fetching name and icon for an application */
-    private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
-    private Thread mRequestThread;
-    private boolean mAbort;
+    /** Queue for fetching name and icon for an application, visible ones first */
+    private final LinkedBlockingDeque<BatterySipper> mRequestQueue =
+            new LinkedBlockingDeque<BatterySipper>();
+    private int mActiveWorkers;
+    private volatile boolean mAbort;
+
+    /** Sippers with a name and icon found, waiting to be shown. */
+    private final ArrayList<BatterySipper> mResolved = new ArrayList<BatterySipper>();
+    private final HashMap<BatterySipper, PowerGaugePreference> mSipperPrefs =
+            new HashMap<BatterySipper, PowerGaugePreference>();
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -125,15 +147,12 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         super.onCreate(icicle);
 
         if (icicle != null) {
-            mStats = sStatsXfer;
+            mDeltaMode = icicle.getBoolean(KEY_DELTA_MODE);
         }
 
         addPreferencesFromResource(R.xml.power_usage_summary);
-        mBatteryInfo = IBatteryStats.Stub.asInterface(
-                ServiceManager.getService("batteryinfo"));
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         mBatteryStatusPref = mAppListGroup.findPreference(KEY_BATTERY_STATUS);
-        mPowerProfile = new PowerProfile(getActivity());
         setHasOptionsMenu(true);
     }
 
@@ -143,25 +162,38 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mAbort = false;
         getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        refreshStats();
+
+        // Delivers the last result, if any, right away.
+        final PowerUsageLoader loader = (PowerUsageLoader) getLoaderManager().initLoader(
+                LOADER_POWER_USAGE, null, mPowerUsageCallbacks);
+        loader.resumeLoading();
+        if (mDeltaMode) {
+            mHandler.sendEmptyMessageDelayed(MSG_REFRESH_DELTA, DELTA_REFRESH_INTERVAL);
+        }
     }
 
     @Override
-    public void onPause() {
-        synchronized (mRequestQueue) {
-            mAbort = true;
-        }
-        mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
-        getActivity().unregisterReceiver(mBatteryInfoReceiver);
-        super.onPause();
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(KEY_DELTA_MODE, mDeltaMode);
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
+    public void onPause() {
+        mAbort = true;
+        mRequestQueue.clear();
+        mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
+        mHandler.removeMessages(MSG_REFRESH_DELTA);
+        synchronized (mResolved) {
+            mResolved.clear();
+        }
+        getActivity().unregisterReceiver(mBatteryInfoReceiver);
+        final Loader<PowerUsageResult> loader =
+                getLoaderManager().getLoader(LOADER_POWER_USAGE);
+        if (loader != null) {
+            loader.cancelLoad();
         }
+        super.onPause();
     }
 
     @Override
@@ -170,6 +202,7 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
             Parcel hist = Parcel.obtain();
             mStats.writeToParcelWithoutUids(hist, 0);
             byte[] histData = hist.marshall();
+            BatteryHistoryData.noteParcelled(mStats, histData);
             Bundle args = new Bundle();
             args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
             PreferenceActivity pa = (PreferenceActivity)getActivity();
@@ -185,10 +218,10 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         Bundle args = new Bundle();
         args.putString(PowerUsageDetail.EXTRA_TITLE, sipper.name);
         args.putInt(PowerUsageDetail.EXTRA_PERCENT, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mTotalPower));
+                Math.ceil(sipper.getSortValue() * 100 / mResult.totalPower));
         args.putInt(PowerUsageDetail.EXTRA_GAUGE, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mMaxPower));
-        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, mStatsPeriod);
+                Math.ceil(sipper.getSortValue() * 100 / mResult.maxPower));
+        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, mResult.statsPeriod);
         args.putString(PowerUsageDetail.EXTRA_ICON_PACKAGE, sipper.defaultPackageName);
         args.putInt(PowerUsageDetail.EXTRA_ICON_ID, sipper.iconId);
         args.putDouble(PowerUsageDetail.EXTRA_NO_COVERAGE, sipper.noCoveragePercent);
@@ -228,12 +261,12 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
                 Writer result = new StringWriter();
                 PrintWriter printWriter = new PrintWriter(result);
-                mStats.dumpLocked(printWriter, "", mStatsType, uid.getUid());
+                mStats.dumpLocked(printWriter, "", mResult.statsType, uid.getUid());
                 args.putString(PowerUsageDetail.EXTRA_REPORT_DETAILS, result.toString());
                 
                 result = new StringWriter();
                 printWriter = new PrintWriter(result);
-                mStats.dumpCheckinLocked(printWriter, mStatsType, uid.getUid());
+                mStats.dumpCheckinLocked(printWriter, mResult.statsType, uid.getUid());
                 args.putString(PowerUsageDetail.EXTRA_REPORT_CHECKIN_DETAILS, result.toString());
             }
             break;
@@ -318,10 +351,18 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 .setAlphabeticShortcut('r');
         refresh.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM |
                 MenuItem.SHOW_AS_ACTION_WITH_TEXT);
+        menu.add(0, MENU_STATS_RECENT, 0, getString(R.string.menu_stats_recent,
+                DELTA_WINDOW / DateUtils.MINUTE_IN_MILLIS))
+                .setCheckable(true)
+                .setChecked(mDeltaMode);
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        final PowerUsageLoader loader = getPowerUsageLoader();
+        if (loader == null) {
+            return false;
+        }
         switch (item.getItemId()) {
             case MENU_STATS_TYPE:
                 if (mStatsType == BatteryStats.STATS_SINCE_CHARGED) {
@@ -329,37 +370,61 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                loader.setStatsType(mStatsType);
                 return true;
             case MENU_STATS_REFRESH:
-                mStats = null;
-                refreshStats();
+                loader.refresh();
+                return true;
+            case MENU_STATS_RECENT:
+                mDeltaMode = !mDeltaMode;
+                item.setChecked(mDeltaMode);
+                loader.setDeltaWindow(mDeltaMode ? DELTA_WINDOW : 0);
+                mHandler.removeMessages(MSG_REFRESH_DELTA);
+                if (mDeltaMode) {
+                    mHandler.sendEmptyMessageDelayed(MSG_REFRESH_DELTA, DELTA_REFRESH_INTERVAL);
+                }
                 return true;
             default:
                 return false;
         }
     }
 
+    private PowerUsageLoader getPowerUsageLoader() {
+        return (PowerUsageLoader) getLoaderManager()
+                .<PowerUsageResult>getLoader(LOADER_POWER_USAGE);
+    }
+
     private void addNotAvailableMessage() {
         Preference notAvailable = new Preference(getActivity());
         notAvailable.setTitle(R.string.power_usage_not_available);
         mAppListGroup.addPreference(notAvailable);
     }
 
-    private void refreshStats() {
-        if (mStats == null) {
-            load();
+    private final LoaderCallbacks<PowerUsageResult> mPowerUsageCallbacks =
+            new LoaderCallbacks<PowerUsageResult>() {
+        @Override
+        public Loader<PowerUsageResult> onCreateLoader(int id, Bundle args) {
+            return new PowerUsageLoader(getActivity(), mStatsType);
         }
-        mMaxPower = 0;
-        mTotalPower = 0;
-        mWifiPower = 0;
-        mBluetoothPower = 0;
-        mAppWifiRunning = 0;
+
+        @Override
+        public void onLoadFinished(Loader<PowerUsageResult> loader, PowerUsageResult result) {
+            if (result != null) {
+                bindResult(result);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<PowerUsageResult> loader) {
+            // nothing to clear; preferences only hold sippers
+        }
+    };
+
+    private void bindResult(PowerUsageResult result) {
+        mResult = result;
+        mStats = result.stats;
 
         mAppListGroup.removeAll();
-        mUsageList.clear();
-        mWifiSippers.clear();
-        mBluetoothSippers.clear();
         mAppListGroup.setOrderingAsAdded(false);
 
         mBatteryStatusPref.setOrder(-2);
@@ -368,421 +433,78 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         hist.setOrder(-1);
         mAppListGroup.addPreference(hist);
         
-        if (mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
+        if (!result.available) {
             addNotAvailableMessage();
             return;
         }
-        processAppUsage();
-        processMiscUsage();
-
-        Collections.sort(mUsageList);
-        for (BatterySipper sipper : mUsageList) {
-            if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
-            final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
-            if (percentOfTotal < 1) continue;
+
+        mRequestQueue.clear();
+        mSipperPrefs.clear();
+
+        // Rows already on screen are a fair guess of how many will show.
+        final int visibleRows = getListView().getChildCount();
+        final ArrayList<BatterySipper> visible = new ArrayList<BatterySipper>();
+        for (BatterySipper sipper : result.usageList) {
             PowerGaugePreference pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
-            final double percentOfMax = (sipper.getSortValue() * 100) / mMaxPower;
-            sipper.percent = percentOfTotal;
+            final double percentOfMax = (sipper.getSortValue() * 100) / result.maxPower;
             pref.setTitle(sipper.name);
             pref.setOrder(Integer.MAX_VALUE - (int) sipper.getSortValue()); // Invert the order
-            pref.setPercent(percentOfMax, percentOfTotal);
+            pref.setPercent(percentOfMax, sipper.percent);
             if (sipper.uidObj != null) {
                 pref.setKey(Integer.toString(sipper.uidObj.getUid()));
             }
             mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
-        }
-        synchronized (mRequestQueue) {
-            if (!mRequestQueue.isEmpty()) {
-                if (mRequestThread == null) {
-                    mRequestThread = new Thread(this, "BatteryUsage Icon Loader");
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                }
-                mRequestQueue.notify();
-            }
-        }
-    }
-
-    private void processAppUsage() {
-        SensorManager sensorManager = (SensorManager)getActivity().getSystemService(
-                Context.SENSOR_SERVICE);
-        final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
-        }
-        final double averageCostPerByte = getAverageDataCost();
-        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
-        long appWakelockTime = 0;
-        BatterySipper osApp = null;
-        mStatsPeriod = uSecTime;
-        SparseArray<? extends Uid> uidStats = mStats.getUidStats();
-        final int NU = uidStats.size();
-        for (int iu = 0; iu < NU; iu++) {
-            Uid u = uidStats.valueAt(iu);
-            double power = 0;
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    if (DEBUG) Log.i(TAG, "Process name = " + ent.getKey());
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
-                if (DEBUG) Log.i(TAG, "Max drain of " + highestDrain 
-                        + " by " + packageWithHighestDrain);
-            }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
-            }
-            power /= 1000;
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
-            }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
-
-            // Add cost of holding a wake lock
-            power += (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            
-            // Add cost of data traffic
-            long tcpBytesReceived = u.getTcpBytesReceived(mStatsType);
-            long tcpBytesSent = u.getTcpBytesSent(mStatsType);
-            power += (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
-            mAppWifiRunning += wifiRunningTimeMs;
-            power += (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorType = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorType) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        android.hardware.Sensor sensorData =
-                                sensorManager.getDefaultSensor(sensorType);
-                        if (sensorData != null) {
-                            multiplier = sensorData.getPower();
-                            if (DEBUG) {
-                                Log.i(TAG, "Got sensor " + sensorData.getName() + " with power = "
-                                        + multiplier);
-                            }
-                        }
-                }
-                power += (multiplier * sensorTime) / 1000;
-            }
-
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid() + ": power=" + power);
-
-            // Add the app to the list if it is consuming power
-            if (power != 0 || u.getUid() == 0) {
-                BatterySipper app = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
-                        new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
-                app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
-                app.wakeLockTime = wakelockTime;
-                app.tcpBytesReceived = tcpBytesReceived;
-                app.tcpBytesSent = tcpBytesSent;
-                if (u.getUid() == Process.WIFI_UID) {
-                    mWifiSippers.add(app);
-                } else if (u.getUid() == Process.BLUETOOTH_GID) {
-                    mBluetoothSippers.add(app);
+            mSipperPrefs.put(sipper, pref);
+            if (sipper.needsNameIcon) {
+                if (visibleRows == 0 || mAppListGroup.getPreferenceCount() <= visibleRows) {
+                    visible.add(sipper);
                 } else {
-                    mUsageList.add(app);
-                }
-                if (u.getUid() == 0) {
-                    osApp = app;
+                    mRequestQueue.offerLast(sipper);
                 }
             }
-            if (u.getUid() == Process.WIFI_UID) {
-                mWifiPower += power;
-            } else if (u.getUid() == Process.BLUETOOTH_GID) {
-                mBluetoothPower += power;
-            } else {
-                if (power > mMaxPower) mMaxPower = power;
-                mTotalPower += power;
-            }
-            if (DEBUG) Log.i(TAG, "Added power = " + power);
         }
-
-        // The device has probably been awake for longer than the screen on
-        // time and application wake lock time would account for.  Assign
-        // this remainder to the OS, if possible.
-        if (osApp != null) {
-            long wakeTimeMillis = mStats.computeBatteryUptime(
-                    SystemClock.uptimeMillis() * 1000, which) / 1000;
-            wakeTimeMillis -= appWakelockTime + (mStats.getScreenOnTime(
-                    SystemClock.elapsedRealtime(), which) / 1000);
-            if (wakeTimeMillis > 0) {
-                double power = (wakeTimeMillis
-                        * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-                if (DEBUG) Log.i(TAG, "OS wakeLockTime " + wakeTimeMillis + " power " + power);
-                osApp.wakeLockTime += wakeTimeMillis;
-                osApp.value += power;
-                osApp.values[0] += power;
-                if (osApp.value > mMaxPower) mMaxPower = osApp.value;
-                mTotalPower += power;
-            }
+        for (int i = visible.size() - 1; i >= 0; i--) {
+            mRequestQueue.offerFirst(visible.get(i));
         }
+        startNameIconWorkers();
     }
 
-    private void addPhoneUsage(long uSecNow) {
-        long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mStatsType) / 1000;
-        double phoneOnPower = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
-                * phoneOnTimeMs / 1000;
-        addEntry(getActivity().getString(R.string.power_phone), DrainType.PHONE, phoneOnTimeMs,
-                R.drawable.ic_settings_voice_calls, phoneOnPower);
-    }
-
-    private void addScreenUsage(long uSecNow) {
-        double power = 0;
-        long screenOnTimeMs = mStats.getScreenOnTime(uSecNow, mStatsType) / 1000;
-        power += screenOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_ON);
-        final double screenFullPower =
-                mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        for (int i = 0; i < BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS; i++) {
-            double screenBinPower = screenFullPower * (i + 0.5f)
-                    / BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS;
-            long brightnessTime = mStats.getScreenBrightnessTime(i, uSecNow, mStatsType) / 1000;
-            power += screenBinPower * brightnessTime;
-            if (DEBUG) {
-                Log.i(TAG, "Screen bin power = " + (int) screenBinPower + ", time = "
-                        + brightnessTime);
+    private void startNameIconWorkers() {
+        synchronized (mRequestQueue) {
+            while (mActiveWorkers < MAX_NAME_ICON_WORKERS
+                    && mActiveWorkers < mRequestQueue.size()) {
+                mActiveWorkers++;
+                sNameIconExecutor.execute(mNameIconWorker);
             }
         }
-        power /= 1000; // To seconds
-        addEntry(getActivity().getString(R.string.power_screen), DrainType.SCREEN, screenOnTimeMs,
-                R.drawable.ic_settings_display, power);
-    }
-
-    private void addRadioUsage(long uSecNow) {
-        double power = 0;
-        final int BINS = SignalStrength.NUM_SIGNAL_STRENGTH_BINS;
-        long signalTimeMs = 0;
-        for (int i = 0; i < BINS; i++) {
-            long strengthTimeMs = mStats.getPhoneSignalStrengthTime(i, uSecNow, mStatsType) / 1000;
-            power += strengthTimeMs / 1000
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ON, i);
-            signalTimeMs += strengthTimeMs;
-        }
-        long scanningTimeMs = mStats.getPhoneSignalScanningTime(uSecNow, mStatsType) / 1000;
-        power += scanningTimeMs / 1000 * mPowerProfile.getAveragePower(
-                PowerProfile.POWER_RADIO_SCANNING);
-        BatterySipper bs =
-                addEntry(getActivity().getString(R.string.power_cell), DrainType.CELL,
-                        signalTimeMs, R.drawable.ic_settings_cell_standby, power);
-        if (signalTimeMs != 0) {
-            bs.noCoveragePercent = mStats.getPhoneSignalStrengthTime(0, uSecNow, mStatsType)
-                    / 1000 * 100.0 / signalTimeMs;
-        }
-    }
-
-    private void aggregateSippers(BatterySipper bs, List<BatterySipper> from, String tag) {
-        for (int i=0; i<from.size(); i++) {
-            BatterySipper wbs = from.get(i);
-            if (DEBUG) Log.i(TAG, tag + " adding sipper " + wbs + ": cpu=" + wbs.cpuTime);
-            bs.cpuTime += wbs.cpuTime;
-            bs.gpsTime += wbs.gpsTime;
-            bs.wifiRunningTime += wbs.wifiRunningTime;
-            bs.cpuFgTime += wbs.cpuFgTime;
-            bs.wakeLockTime += wbs.wakeLockTime;
-            bs.tcpBytesReceived += wbs.tcpBytesReceived;
-            bs.tcpBytesSent += wbs.tcpBytesSent;
-        }
-    }
-
-    private void addWiFiUsage(long uSecNow) {
-        long onTimeMs = mStats.getWifiOnTime(uSecNow, mStatsType) / 1000;
-        long runningTimeMs = mStats.getGlobalWifiRunningTime(uSecNow, mStatsType) / 1000;
-        if (DEBUG) Log.i(TAG, "WIFI runningTime=" + runningTimeMs
-                + " app runningTime=" + mAppWifiRunning);
-        runningTimeMs -= mAppWifiRunning;
-        if (runningTimeMs < 0) runningTimeMs = 0;
-        double wifiPower = (onTimeMs * 0 /* TODO */
-                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)
-            + runningTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-        if (DEBUG) Log.i(TAG, "WIFI power=" + wifiPower + " from procs=" + mWifiPower);
-        BatterySipper bs = addEntry(getActivity().getString(R.string.power_wifi), DrainType.WIFI,
-                runningTimeMs, R.drawable.ic_settings_wifi, wifiPower + mWifiPower);
-        aggregateSippers(bs, mWifiSippers, "WIFI");
-    }
-
-    private void addIdleUsage(long uSecNow) {
-        long idleTimeMs = (uSecNow - mStats.getScreenOnTime(uSecNow, mStatsType)) / 1000;
-        double idlePower = (idleTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_IDLE))
-                / 1000;
-        addEntry(getActivity().getString(R.string.power_idle), DrainType.IDLE, idleTimeMs,
-                R.drawable.ic_settings_phone_idle, idlePower);
-    }
-
-    private void addBluetoothUsage(long uSecNow) {
-        long btOnTimeMs = mStats.getBluetoothOnTime(uSecNow, mStatsType) / 1000;
-        double btPower = btOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_ON)
-                / 1000;
-        int btPingCount = mStats.getBluetoothPingCount();
-        btPower += (btPingCount
-                * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_AT_CMD)) / 1000;
-        BatterySipper bs = addEntry(getActivity().getString(R.string.power_bluetooth),
-                DrainType.BLUETOOTH, btOnTimeMs, R.drawable.ic_settings_bluetooth,
-                btPower + mBluetoothPower);
-        aggregateSippers(bs, mBluetoothSippers, "Bluetooth");
-    }
-
-    private double getAverageDataCost() {
-        final long WIFI_BPS = 1000000; // TODO: Extract average bit rates from system 
-        final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
-        final double WIFI_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ACTIVE)
-                / 3600;
-        final double MOBILE_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
-                / 3600;
-        final long mobileData = mStats.getMobileTcpBytesReceived(mStatsType) +
-                mStats.getMobileTcpBytesSent(mStatsType);
-        final long wifiData = mStats.getTotalTcpBytesReceived(mStatsType) +
-                mStats.getTotalTcpBytesSent(mStatsType) - mobileData;
-        final long radioDataUptimeMs = mStats.getRadioDataUptime() / 1000;
-        final long mobileBps = radioDataUptimeMs != 0
-                ? mobileData * 8 * 1000 / radioDataUptimeMs
-                : MOBILE_BPS;
-
-        double mobileCostPerByte = MOBILE_POWER / (mobileBps / 8);
-        double wifiCostPerByte = WIFI_POWER / (WIFI_BPS / 8);
-        if (wifiData + mobileData != 0) {
-            return (mobileCostPerByte * mobileData + wifiCostPerByte * wifiData)
-                    / (mobileData + wifiData);
-        } else {
-            return 0;
-        }
-    }
-
-    private void processMiscUsage() {
-        final int which = mStatsType;
-        long uSecTime = SystemClock.elapsedRealtime() * 1000;
-        final long uSecNow = mStats.computeBatteryRealtime(uSecTime, which);
-        final long timeSinceUnplugged = uSecNow;
-        if (DEBUG) {
-            Log.i(TAG, "Uptime since last unplugged = " + (timeSinceUnplugged / 1000));
-        }
-
-        addPhoneUsage(uSecNow);
-        addScreenUsage(uSecNow);
-        addWiFiUsage(uSecNow);
-        addBluetoothUsage(uSecNow);
-        addIdleUsage(uSecNow); // Not including cellular idle power
-        // Don't compute radio usage if it's a wifi-only device
-        if (!com.android.settings.Utils.isWifiOnly(getActivity())) {
-            addRadioUsage(uSecNow);
-        }
-    }
-
-    private BatterySipper addEntry(String label, DrainType drainType, long time, int iconId,
-            double power) {
-        if (power > mMaxPower) mMaxPower = power;
-        mTotalPower += power;
-        BatterySipper bs = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                label, drainType, iconId, null, new double[] {power});
-        bs.usageTime = time;
-        bs.iconId = iconId;
-        mUsageList.add(bs);
-        return bs;
-    }
-
-    private void load() {
-        try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                    .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
-        }
     }
 
-    public void run() {
-        while (true) {
-            BatterySipper bs;
-            synchronized (mRequestQueue) {
-                if (mRequestQueue.isEmpty() || mAbort) {
-                    mRequestThread = null;
-                    return;
+    private final Runnable mNameIconWorker = new Runnable() {
+        public void run() {
+            while (true) {
+                final BatterySipper bs;
+                synchronized (mRequestQueue) {
+                    bs = mAbort ? null : mRequestQueue.pollFirst();
+                    if (bs == null) {
+                        mActiveWorkers--;
+                        return;
+                    }
+                }
+                if (bs.getNameIcon()) {
+                    synchronized (mResolved) {
+                        mResolved.add(bs);
+                        if (mResolved.size() == 1) {
+                            mHandler.sendEmptyMessageDelayed(
+                                    MSG_UPDATE_NAME_ICON, NAME_ICON_BATCH_DELAY);
+                        }
+                    }
                 }
-                bs = mRequestQueue.remove(0);
             }
-            bs.getNameIcon();
         }
-    }
+    };
 
     static final int MSG_UPDATE_NAME_ICON = 1;
+    static final int MSG_REFRESH_DELTA = 2;
 
     Handler mHandler = new Handler() {
 
@@ -790,14 +512,25 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_UPDATE_NAME_ICON:
-                    BatterySipper bs = (BatterySipper) msg.obj;
-                    PowerGaugePreference pgp = 
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(bs.uidObj.getUid()));
-                    if (pgp != null) {
-                        pgp.setIcon(bs.icon);
-                        pgp.setTitle(bs.name);
+                    final BatterySipper[] resolved;
+                    synchronized (mResolved) {
+                        resolved = mResolved.toArray(new BatterySipper[mResolved.size()]);
+                        mResolved.clear();
+                    }
+                    for (BatterySipper bs : resolved) {
+                        PowerGaugePreference pgp = mSipperPrefs.get(bs);
+                        if (pgp != null) {
+                            pgp.setIcon(bs.icon);
+                            pgp.setTitle(bs.name);
+                        }
+                    }
+                    break;
+                case MSG_REFRESH_DELTA:
+                    final PowerUsageLoader loader = getPowerUsageLoader();
+                    if (loader != null) {
+                        loader.refresh();
                     }
+                    sendEmptyMessageDelayed(MSG_REFRESH_DELTA, DELTA_REFRESH_INTERVAL);
                     break;
             }
             super.handleMessage(msg);
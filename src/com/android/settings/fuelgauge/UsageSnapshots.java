@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffer of per-uid power usage snapshots, taken from cumulative
+ * since-charged counters, so that usage over any recent window is the
+ * difference of two snapshots.  Oldest snapshots are dropped to stay within
+ * a fixed memory budget.
+ */
+final class UsageSnapshots {
+    /** Counters kept per uid besides power, in this order. */
+    static final int CPU_TIME = 0;
+    static final int CPU_FG_TIME = 1;
+    static final int WAKE_LOCK_TIME = 2;
+    static final int GPS_TIME = 3;
+    static final int WIFI_RUNNING_TIME = 4;
+    static final int TCP_BYTES_RECEIVED = 5;
+    static final int TCP_BYTES_SENT = 6;
+    static final int NUM_COUNTERS = 7;
+
+    private static final int MAX_SNAPSHOTS = 64;
+
+    /** Rough cap on memory held by all snapshots, in bytes. */
+    private static final int MAX_BYTES = 256 * 1024;
+
+    /** Bytes held per uid in a snapshot: uid, power and counters. */
+    private static final int BYTES_PER_UID = 4 + 8 + NUM_COUNTERS * 8;
+
+    static final class Snapshot {
+        /** When taken, in {@link android.os.SystemClock#elapsedRealtime()} ms. */
+        final long time;
+        /** Battery realtime since charged, in us. */
+        final long batteryRealtime;
+        final int count;
+        /** Sorted ascending. */
+        final int[] uids;
+        final double[] power;
+        final long[] counters;
+
+        Snapshot(long time, long batteryRealtime, int count) {
+            this.time = time;
+            this.batteryRealtime = batteryRealtime;
+            this.count = count;
+            uids = new int[count];
+            power = new double[count];
+            counters = new long[count * NUM_COUNTERS];
+        }
+
+        int indexOf(int uid) {
+            return Arrays.binarySearch(uids, 0, count, uid);
+        }
+
+        int bytes() {
+            return count * BYTES_PER_UID;
+        }
+    }
+
+    private static final UsageSnapshots sInstance = new UsageSnapshots();
+
+    private final Snapshot[] mRing = new Snapshot[MAX_SNAPSHOTS];
+    private int mHead;
+    private int mSize;
+    private int mBytes;
+
+    static UsageSnapshots getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record the computed usage of all uids, which must be since charged and
+     * in uid order, as gathered from the uid stats.
+     */
+    synchronized void record(long time, long batteryRealtime, AppPowerCalculator calc) {
+        final Snapshot latest = getLatestLocked();
+        if (latest != null && batteryRealtime < latest.batteryRealtime) {
+            // Stats were reset by charging, so older counters no longer apply.
+            clearLocked();
+        }
+
+        final Snapshot snapshot = new Snapshot(time, batteryRealtime, calc.mCount);
+        for (int i = 0; i < calc.mCount; i++) {
+            snapshot.uids[i] = calc.mUids[i];
+            snapshot.power[i] = calc.mPower[i];
+            final int base = i * NUM_COUNTERS;
+            snapshot.counters[base + CPU_TIME] = calc.mCpuTime[i];
+            snapshot.counters[base + CPU_FG_TIME] = calc.mCpuFgTime[i];
+            snapshot.counters[base + WAKE_LOCK_TIME] = calc.mWakeLockTime[i];
+            snapshot.counters[base + GPS_TIME] = calc.mGpsTime[i];
+            snapshot.counters[base + WIFI_RUNNING_TIME] = calc.mWifiRunningTime[i];
+            snapshot.counters[base + TCP_BYTES_RECEIVED] = calc.mTcpBytesReceived[i];
+            snapshot.counters[base + TCP_BYTES_SENT] = calc.mTcpBytesSent[i];
+        }
+
+        while (mSize > 0 && (mSize == MAX_SNAPSHOTS || mBytes + snapshot.bytes() > MAX_BYTES)) {
+            final int oldest = (mHead - mSize + MAX_SNAPSHOTS) % MAX_SNAPSHOTS;
+            mBytes -= mRing[oldest].bytes();
+            mRing[oldest] = null;
+            mSize--;
+        }
+        mRing[mHead] = snapshot;
+        mHead = (mHead + 1) % MAX_SNAPSHOTS;
+        mSize++;
+        mBytes += snapshot.bytes();
+    }
+
+    synchronized Snapshot getLatest() {
+        return getLatestLocked();
+    }
+
+    /**
+     * Return the newest snapshot taken at or before the given time, or the
+     * oldest snapshot if all are newer.
+     */
+    synchronized Snapshot getBaseline(long time) {
+        Snapshot baseline = null;
+        for (int i = 1; i <= mSize; i++) {
+            final Snapshot snapshot = mRing[(mHead - i + MAX_SNAPSHOTS) % MAX_SNAPSHOTS];
+            baseline = snapshot;
+            if (snapshot.time <= time) break;
+        }
+        return baseline;
+    }
+
+    private Snapshot getLatestLocked() {
+        return mSize > 0 ? mRing[(mHead - 1 + MAX_SNAPSHOTS) % MAX_SNAPSHOTS] : null;
+    }
+
+    private void clearLocked() {
+        Arrays.fill(mRing, null);
+        mHead = 0;
+        mSize = 0;
+        mBytes = 0;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+/**
+ * Total network usage of a single application, which may span several UIDs.
+ */
+public class AppUsageItem implements Comparable<AppUsageItem> {
+    public int[] uids;
+    public long total;
+
+    public AppUsageItem(int[] uids, long total) {
+        this.uids = uids;
+        this.total = total;
+    }
+
+    /** {@inheritDoc} */
+    public int compareTo(AppUsageItem another) {
+        return Long.compare(another.total, total);
+    }
+}
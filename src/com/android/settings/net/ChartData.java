@@ -24,4 +24,9 @@ public class ChartData {
     public NetworkStatsHistory detail;
     public NetworkStatsHistory detailDefault;
     public NetworkStatsHistory detailForeground;
+
+    public NetworkStatsIndex networkIndex;
+    public NetworkStatsIndex detailIndex;
+    public NetworkStatsIndex detailDefaultIndex;
+    public NetworkStatsIndex detailForegroundIndex;
 }
@@ -25,11 +25,21 @@ import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsService;
+import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -38,9 +48,23 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_UIDS = "uids";
     private static final String KEY_FIELDS = "fields";
 
+    /** Maximum number of UID history requests in flight at once. */
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    private static final ThreadPoolExecutor sRequestExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sRequestExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsService mStatsService;
     private final Bundle mArgs;
 
+    /** Requests of the load currently running, if any. */
+    private RequestBatch mBatch;
+
     public static Bundle buildArgs(NetworkTemplate template, int[] uids) {
         return buildArgs(template, uids, FIELD_RX_BYTES | FIELD_TX_BYTES);
     }
@@ -84,22 +108,22 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             throws RemoteException {
         final ChartData data = new ChartData();
         data.network = mStatsService.getHistoryForNetwork(template, fields);
+        data.networkIndex = new NetworkStatsIndex(data.network);
 
         if (uids != null) {
-            data.detailDefault = null;
-            data.detailForeground = null;
-
-            // load stats for current uid and template
-            for (int uid : uids) {
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+            // load stats for current uids and template, in parallel
+            final NetworkStatsHistory[] defaults = new NetworkStatsHistory[uids.length];
+            final NetworkStatsHistory[] foregrounds = new NetworkStatsHistory[uids.length];
+            if (!collectHistoryForUids(template, uids, defaults, foregrounds)) {
+                // canceled; result will be dropped anyway
+                return null;
             }
 
-            data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-            data.detail.recordEntireHistory(data.detailDefault);
-            data.detail.recordEntireHistory(data.detailForeground);
+            mergeHistory(data, defaults, foregrounds);
+
+            data.detailIndex = new NetworkStatsIndex(data.detail);
+            data.detailDefaultIndex = new NetworkStatsIndex(data.detailDefault);
+            data.detailForegroundIndex = new NetworkStatsIndex(data.detailForeground);
         }
 
         return data;
@@ -117,21 +141,193 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         cancelLoad();
     }
 
+    @Override
+    protected boolean onCancelLoad() {
+        synchronized (this) {
+            if (mBatch != null) {
+                mBatch.cancel();
+            }
+        }
+        return super.onCancelLoad();
+    }
+
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Collect {@link NetworkStatsHistory} of both sets for each requested UID,
+     * issuing requests in parallel. Returns false if the load was canceled.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
+    private boolean collectHistoryForUids(NetworkTemplate template, int[] uids,
+            NetworkStatsHistory[] defaults, NetworkStatsHistory[] foregrounds)
             throws RemoteException {
-        final NetworkStatsHistory history = mStatsService.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final RequestBatch batch = new RequestBatch(uids.length * 2);
+        synchronized (this) {
+            mBatch = batch;
+        }
+        try {
+            for (int uid : uids) {
+                batch.submit(new HistoryRequest(template, uid, SET_DEFAULT));
+                batch.submit(new HistoryRequest(template, uid, SET_FOREGROUND));
+            }
+            for (int i = 0; i < uids.length; i++) {
+                defaults[i] = batch.futures.get(i * 2).get();
+                foregrounds[i] = batch.futures.get(i * 2 + 1).get();
+            }
+            return true;
+        } catch (CancellationException e) {
+            return false;
+        } catch (InterruptedException e) {
+            batch.cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            batch.cancel();
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException("problem reading network stats", e.getCause());
+        } finally {
+            synchronized (this) {
+                mBatch = null;
+            }
+        }
+    }
+
+    /**
+     * Sum the per-UID {@link NetworkStatsHistory} bucket by bucket into the
+     * default, foreground and combined detail of the given data. All of them
+     * come from the same service, so their buckets share one duration and
+     * alignment; each input bucket is read once, and each output bucket
+     * recorded once.
+     */
+    private static void mergeHistory(ChartData data, NetworkStatsHistory[] defaults,
+            NetworkStatsHistory[] foregrounds) {
+        final long bucketDuration = defaults[0].getBucketDuration();
+        final long start = Math.min(getStart(defaults), getStart(foregrounds));
+        final long end = Math.max(getEnd(defaults), getEnd(foregrounds));
+
+        final int size = start < end ? (int) ((end - start) / bucketDuration) : 0;
+        final long[] defaultRx = new long[size];
+        final long[] defaultTx = new long[size];
+        final long[] foregroundRx = new long[size];
+        final long[] foregroundTx = new long[size];
+        sumBuckets(defaults, start, defaultRx, defaultTx);
+        sumBuckets(foregrounds, start, foregroundRx, foregroundTx);
+
+        data.detailDefault = buildHistory(
+                start, bucketDuration, defaultRx, defaultTx, null, null);
+        data.detailForeground = buildHistory(
+                start, bucketDuration, foregroundRx, foregroundTx, null, null);
+        data.detail = buildHistory(
+                start, bucketDuration, defaultRx, defaultTx, foregroundRx, foregroundTx);
+    }
+
+    private static long getStart(NetworkStatsHistory[] histories) {
+        long start = Long.MAX_VALUE;
+        for (NetworkStatsHistory history : histories) {
+            if (history.size() > 0) {
+                start = Math.min(start, history.getStart());
+            }
+        }
+        return start;
+    }
+
+    private static long getEnd(NetworkStatsHistory[] histories) {
+        long end = Long.MIN_VALUE;
+        for (NetworkStatsHistory history : histories) {
+            if (history.size() > 0) {
+                end = Math.max(end, history.getEnd());
+            }
+        }
+        return end;
+    }
+
+    private static void sumBuckets(
+            NetworkStatsHistory[] histories, long start, long[] rx, long[] tx) {
+        NetworkStatsHistory.Entry entry = null;
+        for (NetworkStatsHistory history : histories) {
+            final long bucketDuration = history.getBucketDuration();
+            final int count = history.size();
+            for (int i = 0; i < count; i++) {
+                entry = history.getValues(i, entry);
+                final int index = (int) ((entry.bucketStart - start) / bucketDuration);
+                rx[index] += entry.rxBytes;
+                tx[index] += entry.txBytes;
+            }
+        }
+    }
+
+    /**
+     * Build a history from summed buckets, adding the second set of buckets
+     * when given.
+     */
+    private static NetworkStatsHistory buildHistory(long start, long bucketDuration,
+            long[] rx, long[] tx, long[] otherRx, long[] otherTx) {
+        int count = 0;
+        for (int i = 0; i < rx.length; i++) {
+            if (rx[i] != 0 || tx[i] != 0 || (otherRx != null
+                    && (otherRx[i] != 0 || otherTx[i] != 0))) {
+                count++;
+            }
+        }
+
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                bucketDuration, count, FIELD_RX_BYTES | FIELD_TX_BYTES);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < rx.length; i++) {
+            entry.rxBytes = rx[i] + (otherRx != null ? otherRx[i] : 0);
+            entry.txBytes = tx[i] + (otherTx != null ? otherTx[i] : 0);
+            if (entry.rxBytes != 0 || entry.txBytes != 0) {
+                final long bucketStart = start + i * bucketDuration;
+                history.recordData(bucketStart, bucketStart + bucketDuration, entry);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Request for {@link NetworkStatsHistory} of a single UID and set.
+     */
+    private class HistoryRequest implements Callable<NetworkStatsHistory> {
+        private final NetworkTemplate mTemplate;
+        private final int mUid;
+        private final int mSet;
+
+        public HistoryRequest(NetworkTemplate template, int uid, int set) {
+            mTemplate = template;
+            mUid = uid;
+            mSet = set;
+        }
+
+        @Override
+        public NetworkStatsHistory call() throws RemoteException {
+            return mStatsService.getHistoryForUid(
+                    mTemplate, mUid, mSet, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+        }
+    }
+
+    /**
+     * Set of outstanding {@link HistoryRequest} that can be canceled together.
+     */
+    private static class RequestBatch {
+        final ArrayList<Future<NetworkStatsHistory>> futures;
+        private boolean mCanceled;
+
+        public RequestBatch(int size) {
+            futures = new ArrayList<Future<NetworkStatsHistory>>(size);
+        }
+
+        public synchronized void submit(HistoryRequest request) {
+            final Future<NetworkStatsHistory> future = sRequestExecutor.submit(request);
+            if (mCanceled) {
+                future.cancel(true);
+            }
+            futures.add(future);
+        }
+
+        public synchronized void cancel() {
+            mCanceled = true;
+            for (Future<NetworkStatsHistory> future : futures) {
+                future.cancel(true);
+            }
         }
     }
 }
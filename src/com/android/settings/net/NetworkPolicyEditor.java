@@ -52,6 +52,7 @@ public class NetworkPolicyEditor {
 
     private INetworkPolicyManager mPolicyService;
     private ArrayList<NetworkPolicy> mPolicies = Lists.newArrayList();
+    private int mWriteCount;
 
     public NetworkPolicyEditor(INetworkPolicyManager policyService) {
         mPolicyService = checkNotNull(policyService);
@@ -98,14 +99,23 @@ public class NetworkPolicyEditor {
 
     public void writeAsync() {
         // TODO: consider making more robust by passing through service
+        // queued behind any other pending policy writes, and safe to call
+        // from any thread.
+        mWriteCount++;
         final NetworkPolicy[] policies = mPolicies.toArray(new NetworkPolicy[mPolicies.size()]);
-        new AsyncTask<Void, Void, Void>() {
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 write(policies);
-                return null;
             }
-        }.execute();
+        });
+    }
+
+    /**
+     * Return the number of times {@link #writeAsync()} was called.
+     */
+    public int getWriteCount() {
+        return mWriteCount;
     }
 
     public void write(NetworkPolicy[] policies) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStatsHistory;
+
+/**
+ * Immutable prefix sums over the rx/tx bytes of a {@link NetworkStatsHistory},
+ * answering range totals with a binary search instead of a walk over every
+ * bucket. Totals match {@link NetworkStatsHistory#getValues(long, long, long,
+ * NetworkStatsHistory.Entry)}, including partial and active buckets.
+ */
+public class NetworkStatsIndex {
+    private final long mBucketDuration;
+    private final long[] mBucketStart;
+    private final long[] mRxBytes;
+    private final long[] mTxBytes;
+
+    /** Sum of bucket values before each index; one longer than buckets. */
+    private final long[] mCumulativeRx;
+    private final long[] mCumulativeTx;
+
+    public NetworkStatsIndex(NetworkStatsHistory history) {
+        final int size = history.size();
+        mBucketDuration = history.getBucketDuration();
+        mBucketStart = new long[size];
+        mRxBytes = new long[size];
+        mTxBytes = new long[size];
+        mCumulativeRx = new long[size + 1];
+        mCumulativeTx = new long[size + 1];
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = history.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mRxBytes[i] = entry.rxBytes;
+            mTxBytes[i] = entry.txBytes;
+            mCumulativeRx[i + 1] = mCumulativeRx[i] + entry.rxBytes;
+            mCumulativeTx[i + 1] = mCumulativeTx[i] + entry.txBytes;
+        }
+    }
+
+    public int size() {
+        return mBucketStart.length;
+    }
+
+    public long getBucketStart(int i) {
+        return mBucketStart[i];
+    }
+
+    public long getBucketDuration() {
+        return mBucketDuration;
+    }
+
+    /**
+     * Return total rx+tx bytes of all buckets before the given index.
+     */
+    public long getCumulativeBytes(int i) {
+        return mCumulativeRx[i] + mCumulativeTx[i];
+    }
+
+    /**
+     * Return total rx+tx bytes between the given times, assuming nothing is
+     * active right now.
+     */
+    public long getTotalBytes(long start, long end) {
+        final NetworkStatsHistory.Entry entry = getValues(start, end, Long.MAX_VALUE, null);
+        return entry.rxBytes + entry.txBytes;
+    }
+
+    /**
+     * Return rx/tx bytes between the given times, filling the given
+     * {@link NetworkStatsHistory.Entry} the same way
+     * {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}
+     * does for those fields.
+     */
+    public NetworkStatsHistory.Entry getValues(
+            long start, long end, long now, NetworkStatsHistory.Entry recycle) {
+        final NetworkStatsHistory.Entry entry = recycle != null ? recycle
+                : new NetworkStatsHistory.Entry();
+        entry.bucketStart = start;
+        entry.bucketDuration = end - start;
+        entry.rxBytes = 0;
+        entry.txBytes = 0;
+
+        // first bucket ending after start, and last bucket starting before end
+        final int first = start > Long.MIN_VALUE + mBucketDuration
+                ? lowerBound(start - mBucketDuration + 1) : 0;
+        final int last = lowerBound(end) - 1;
+        if (first > last) {
+            return entry;
+        }
+
+        addPartial(entry, first, start, end, now);
+        if (last > first) {
+            addPartial(entry, last, start, end, now);
+        }
+
+        // buckets between the two are entirely inside range
+        if (last - first > 1) {
+            entry.rxBytes += mCumulativeRx[last] - mCumulativeRx[first + 1];
+            entry.txBytes += mCumulativeTx[last] - mCumulativeTx[first + 1];
+        }
+        return entry;
+    }
+
+    private void addPartial(
+            NetworkStatsHistory.Entry entry, int i, long start, long end, long now) {
+        final long curStart = mBucketStart[i];
+        final long curEnd = curStart + mBucketDuration;
+
+        // include full value for active buckets, otherwise only fractional
+        final boolean activeBucket = curStart < now && curEnd > now;
+        final long overlap;
+        if (activeBucket) {
+            overlap = mBucketDuration;
+        } else {
+            final long overlapEnd = curEnd < end ? curEnd : end;
+            final long overlapStart = curStart > start ? curStart : start;
+            overlap = overlapEnd - overlapStart;
+        }
+        if (overlap <= 0) return;
+
+        entry.rxBytes += mRxBytes[i] * overlap / mBucketDuration;
+        entry.txBytes += mTxBytes[i] * overlap / mBucketDuration;
+    }
+
+    /**
+     * Return index of first bucket starting at or after the given time.
+     */
+    private int lowerBound(long time) {
+        int lo = 0, hi = mBucketStart.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBucketStart[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
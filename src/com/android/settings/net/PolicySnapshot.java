@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkPolicyManager.POLICY_NONE;
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+
+import android.net.INetworkPolicyManager;
+import android.os.AsyncTask;
+import android.os.INetworkManagementService;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+/**
+ * Snapshot of network policy state, read once off the main thread so that UI
+ * never waits on the policy service. Holds all {@link android.net.NetworkPolicy}
+ * through a {@link NetworkPolicyEditor} and global background restriction.
+ * Per-UID background restriction is only read for UIDs actually shown, up
+ * front for the one given to {@link #load} and on first use for any other.
+ * Changes apply to the snapshot immediately and are persisted behind, in
+ * order, on {@link AsyncTask#SERIAL_EXECUTOR}.
+ */
+public class PolicySnapshot {
+    private static final String TAG = "PolicySnapshot";
+
+    private final INetworkPolicyManager mPolicyService;
+    private final NetworkPolicyEditor mEditor;
+    private final boolean mBandwidthControlEnabled;
+    private boolean mRestrictBackground;
+    private int mWriteCount;
+
+    /** Background restriction of the application UIDs read so far. */
+    private final SparseBooleanArray mAppRestrictBackground = new SparseBooleanArray();
+
+    private PolicySnapshot(INetworkPolicyManager policyService, NetworkPolicyEditor editor,
+            boolean bandwidthControlEnabled, boolean restrictBackground) {
+        mPolicyService = policyService;
+        mEditor = editor;
+        mBandwidthControlEnabled = bandwidthControlEnabled;
+        mRestrictBackground = restrictBackground;
+    }
+
+    /**
+     * Read policy state, including background restriction of the given
+     * application UID if it is one. Talks to several services, so never call
+     * from the main thread.
+     */
+    public static PolicySnapshot load(INetworkPolicyManager policyService,
+            INetworkManagementService networkService, int appUid) {
+        final NetworkPolicyEditor editor = new NetworkPolicyEditor(policyService);
+        editor.read();
+
+        boolean bandwidthControlEnabled;
+        try {
+            bandwidthControlEnabled = networkService.isBandwidthControlEnabled();
+        } catch (RemoteException e) {
+            Log.w(TAG, "problem talking with INetworkManagementService: " + e);
+            bandwidthControlEnabled = false;
+        }
+
+        final PolicySnapshot snapshot = new PolicySnapshot(
+                policyService, editor, bandwidthControlEnabled, false);
+        try {
+            snapshot.mRestrictBackground = policyService.getRestrictBackground();
+            if (isAppUid(appUid)) {
+                snapshot.mAppRestrictBackground.put(appUid, readAppRestrictBackground(
+                        policyService, appUid));
+            }
+        } catch (RemoteException e) {
+            // leave background data unrestricted rather than half read
+            Log.w(TAG, "problem reading network policy: " + e);
+            snapshot.mRestrictBackground = false;
+            snapshot.mAppRestrictBackground.clear();
+        }
+        return snapshot;
+    }
+
+    public NetworkPolicyEditor getEditor() {
+        return mEditor;
+    }
+
+    /**
+     * Return the number of changes written through this snapshot or its
+     * editor, so callers can tell whether a newer snapshot may miss some.
+     */
+    public int getWriteCount() {
+        return mWriteCount + mEditor.getWriteCount();
+    }
+
+    public boolean isBandwidthControlEnabled() {
+        return mBandwidthControlEnabled;
+    }
+
+    public boolean getRestrictBackground() {
+        return mRestrictBackground;
+    }
+
+    public void setRestrictBackground(final boolean restrictBackground) {
+        mRestrictBackground = restrictBackground;
+        mWriteCount++;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPolicyService.setRestrictBackground(restrictBackground);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "problem talking with policy service: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return background restriction of the given UID, reading it from the
+     * policy service on the calling thread if this snapshot has not yet.
+     */
+    public boolean getAppRestrictBackground(int uid) {
+        if (!isAppUid(uid)) return false;
+
+        final int index = mAppRestrictBackground.indexOfKey(uid);
+        if (index >= 0) {
+            return mAppRestrictBackground.valueAt(index);
+        }
+        try {
+            final boolean restrictBackground = readAppRestrictBackground(mPolicyService, uid);
+            mAppRestrictBackground.put(uid, restrictBackground);
+            return restrictBackground;
+        } catch (RemoteException e) {
+            Log.w(TAG, "problem reading network policy: " + e);
+            return false;
+        }
+    }
+
+    public void setAppRestrictBackground(final int uid, final boolean restrictBackground) {
+        if (isAppUid(uid)) {
+            mAppRestrictBackground.put(uid, restrictBackground);
+        }
+        mWriteCount++;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPolicyService.setUidPolicy(uid,
+                            restrictBackground ? POLICY_REJECT_METERED_BACKGROUND : POLICY_NONE);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "unable to save policy: " + e);
+                }
+            }
+        });
+    }
+
+    private static boolean isAppUid(int uid) {
+        return uid >= android.os.Process.FIRST_APPLICATION_UID
+                && uid <= android.os.Process.LAST_APPLICATION_UID;
+    }
+
+    private static boolean readAppRestrictBackground(INetworkPolicyManager policyService,
+            int uid) throws RemoteException {
+        return (policyService.getUidPolicy(uid) & POLICY_REJECT_METERED_BACKGROUND) != 0;
+    }
+}
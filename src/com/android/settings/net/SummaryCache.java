@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.NetworkTemplate;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of per-application usage summaries over closed time
+ * ranges, which can no longer change. Keyed by {@link NetworkTemplate} and
+ * range boundaries, and stored as a single compact binary file.
+ * <p>
+ * Usage of removed applications is moved to
+ * {@link android.net.TrafficStats#UID_REMOVED}, and the cached summaries
+ * follow through {@link PackageRemovedReceiver}.
+ */
+public class SummaryCache {
+    private static final String TAG = "SummaryCache";
+    private static final boolean LOGD = false;
+
+    private static final String FILE_NAME = "data_usage_summary.cache";
+    private static final int MAGIC = 0x53554d43;
+    private static final int VERSION = 2;
+
+    /** Maximum number of summaries kept, least recently used first out. */
+    private static final int MAX_ENTRIES = 24;
+
+    private static SummaryCache sInstance;
+
+    private final File mFile;
+    private LinkedHashMap<String, ArrayList<AppUsageItem>> mEntries;
+
+    public static synchronized SummaryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SummaryCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SummaryCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Return the cached summary for the given template and range, or
+     * {@code null} if none.
+     */
+    public synchronized ArrayList<AppUsageItem> get(NetworkTemplate template, long start, long end) {
+        ensureLoaded();
+        return mEntries.get(buildKey(template, start, end));
+    }
+
+    /**
+     * Store the summary for the given template and range. Only ranges ending
+     * in the past should be stored.
+     */
+    public synchronized void put(
+            NetworkTemplate template, long start, long end, ArrayList<AppUsageItem> items) {
+        ensureLoaded();
+        mEntries.put(buildKey(template, start, end), items);
+        write();
+    }
+
+    /**
+     * Move the usage of the given removed application into the
+     * {@link android.net.TrafficStats#UID_REMOVED} item of every summary, as
+     * the stats service does.
+     */
+    public synchronized void removeUid(int uid) {
+        ensureLoaded();
+        final LinkedHashMap<String, ArrayList<AppUsageItem>> changed =
+                new LinkedHashMap<String, ArrayList<AppUsageItem>>();
+        for (Map.Entry<String, ArrayList<AppUsageItem>> entry : mEntries.entrySet()) {
+            final ArrayList<AppUsageItem> items = entry.getValue();
+            int index = -1;
+            int removedIndex = -1;
+            for (int i = 0; i < items.size(); i++) {
+                final int first = items.get(i).uids[0];
+                if (first == uid) index = i;
+                if (first == UID_REMOVED) removedIndex = i;
+            }
+            if (index < 0) continue;
+
+            // loaders may still hold the old list, so build a new one
+            final ArrayList<AppUsageItem> updated = new ArrayList<AppUsageItem>(items.size());
+            long removedTotal = items.get(index).total;
+            for (int i = 0; i < items.size(); i++) {
+                if (i == removedIndex) {
+                    removedTotal += items.get(i).total;
+                } else if (i != index) {
+                    updated.add(items.get(i));
+                }
+            }
+            updated.add(new AppUsageItem(new int[] { UID_REMOVED }, removedTotal));
+            Collections.sort(updated);
+            changed.put(entry.getKey(), updated);
+        }
+        if (!changed.isEmpty()) {
+            mEntries.putAll(changed);
+            write();
+        }
+    }
+
+    private static String buildKey(NetworkTemplate template, long start, long end) {
+        return template.getMatchRule() + ":" + template.getSubscriberId() + ":" + start + ":"
+                + end;
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) return;
+
+        mEntries = new LinkedHashMap<String, ArrayList<AppUsageItem>>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayList<AppUsageItem>> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        if (!mFile.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                if (LOGD) Log.d(TAG, "ignoring cache of unknown version");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final int size = in.readInt();
+                final ArrayList<AppUsageItem> items = new ArrayList<AppUsageItem>(size);
+                for (int j = 0; j < size; j++) {
+                    final int[] uids = new int[in.readInt()];
+                    for (int k = 0; k < uids.length; k++) {
+                        uids[k] = in.readInt();
+                    }
+                    items.add(new AppUsageItem(uids, in.readLong()));
+                }
+                mEntries.put(key, items);
+            }
+            if (LOGD) Log.d(TAG, "read " + count + " cached summaries");
+        } catch (IOException e) {
+            Log.w(TAG, "problem reading summary cache", e);
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void write() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, ArrayList<AppUsageItem>> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                final ArrayList<AppUsageItem> items = entry.getValue();
+                out.writeInt(items.size());
+                for (AppUsageItem item : items) {
+                    out.writeInt(item.uids.length);
+                    for (int uid : item.uids) {
+                        out.writeInt(uid);
+                    }
+                    out.writeLong(item.total);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "problem replacing summary cache");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "problem writing summary cache", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the usage of fully removed applications into the cached
+     * summaries, so they never need checking against the package manager.
+     */
+    public static class PackageRemovedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) return;
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid < 0) return;
+
+            final SummaryCache cache = getInstance(context);
+            final PendingResult result = goAsync();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    cache.removeUid(uid);
+                    result.finish();
+                }
+            });
+        }
+    }
+}
@@ -16,15 +16,34 @@
 
 package com.android.settings.net;
 
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
 import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.INetworkStatsService;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.provider.Settings;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader of network usage summed per application over a time range, sorted
+ * by total usage descending and ready to bind. Summaries of ranges already
+ * in the past are kept in {@link SummaryCache}.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<ArrayList<AppUsageItem>> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
@@ -54,16 +73,46 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public ArrayList<AppUsageItem> loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        // closed ranges can't change, so serve them from cache when possible
+        final boolean closed = end + getSettleMargin() <= System.currentTimeMillis();
+        final SummaryCache cache = SummaryCache.getInstance(getContext());
+        if (closed) {
+            final ArrayList<AppUsageItem> cached = cache.get(template, start, end);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final NetworkStats stats;
         try {
-            return mStatsService.getSummaryForAllUid(template, start, end, false);
+            stats = mStatsService.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+
+        final ArrayList<AppUsageItem> items = aggregate(stats);
+        if (closed) {
+            cache.put(template, start, end, items);
+        }
+        return items;
+    }
+
+    /**
+     * Return how long after its end a range can still gain usage: traffic
+     * is only recorded at the next poll, and then spread over the bucket
+     * it falls in.
+     */
+    private long getSettleMargin() {
+        final ContentResolver resolver = getContext().getContentResolver();
+        return Settings.Secure.getLong(
+                resolver, Settings.Secure.NETSTATS_POLL_INTERVAL, 30 * MINUTE_IN_MILLIS)
+                + Settings.Secure.getLong(
+                        resolver, Settings.Secure.NETSTATS_UID_BUCKET_DURATION, 2 * HOUR_IN_MILLIS);
     }
 
     @Override
@@ -77,4 +126,64 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         super.onReset();
         cancelLoad();
     }
+
+    /**
+     * Sum the given {@link NetworkStats} per application, folding all
+     * non-application UIDs into a single system item, and return items sorted
+     * by total descending.
+     */
+    static ArrayList<AppUsageItem> aggregate(NetworkStats stats) {
+        final SparseIntArray slots = new SparseIntArray();
+        int[] uids = new int[32];
+        long[] totals = new long[32];
+        int count = 0;
+
+        long systemTotal = 0;
+        final SparseBooleanArray systemUids = new SparseBooleanArray();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            final int uid = entry.uid;
+            final boolean isApp = uid >= android.os.Process.FIRST_APPLICATION_UID
+                    && uid <= android.os.Process.LAST_APPLICATION_UID;
+            if (isApp || uid == UID_REMOVED || uid == UID_TETHERING) {
+                int slot = slots.get(uid, -1);
+                if (slot < 0) {
+                    if (count == uids.length) {
+                        uids = Arrays.copyOf(uids, count * 2);
+                        totals = Arrays.copyOf(totals, count * 2);
+                    }
+                    slot = count++;
+                    uids[slot] = uid;
+                    slots.put(uid, slot);
+                }
+                totals[slot] += entry.rxBytes + entry.txBytes;
+            } else {
+                systemTotal += entry.rxBytes + entry.txBytes;
+                if (uid != android.os.Process.SYSTEM_UID) {
+                    systemUids.put(uid, true);
+                }
+            }
+        }
+
+        final ArrayList<AppUsageItem> items = new ArrayList<AppUsageItem>(count + 1);
+        for (int i = 0; i < count; i++) {
+            items.add(new AppUsageItem(new int[] { uids[i] }, totals[i]));
+        }
+        if (systemTotal > 0) {
+            // system UID always leads, since it picks the label
+            final int[] system = new int[systemUids.size() + 1];
+            system[0] = android.os.Process.SYSTEM_UID;
+            for (int i = 0; i < systemUids.size(); i++) {
+                system[i + 1] = systemUids.keyAt(i);
+            }
+            items.add(new AppUsageItem(system, systemTotal));
+        }
+
+        Collections.sort(items);
+        return items;
+    }
 }
@@ -24,29 +24,58 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.LruCache;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Resolves and caches the label and icon shown for a UID.  Lookups of
+ * different UIDs run concurrently; concurrent lookups of the same UID share
+ * a single resolution.
+ */
 public class UidDetailProvider {
+    private static final int MAX_CACHED_DETAILS = 256;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+    private final HashMap<Integer, PendingDetail> mPending = new HashMap<Integer, PendingDetail>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback for {@link #resolveAll(int[], Callback)}, invoked on the main
+     * thread.
+     */
+    public interface Callback {
+        public void onUidDetailsResolved(int[] uids);
+    }
+
+    private static class PendingDetail {
+        final CountDownLatch done = new CountDownLatch(1);
+        UidDetail detail;
+    }
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = new LruCache<Integer, UidDetail>(MAX_CACHED_DETAILS);
     }
 
-    public synchronized void clearCache() {
-        mUidDetailCache.clear();
+    public void clearCache() {
+        mUidDetailCache.evictAll();
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
-    public synchronized UidDetail getUidDetail(int uid, boolean blocking) {
+    public UidDetail getUidDetail(int uid, boolean blocking) {
         final UidDetail cached = mUidDetailCache.get(uid);
         if (cached != null) {
             return cached;
@@ -54,6 +83,67 @@ public class UidDetailProvider {
             return null;
         }
 
+        PendingDetail pending;
+        boolean owner = false;
+        synchronized (mPending) {
+            pending = mPending.get(uid);
+            if (pending == null) {
+                // check again, in case another lookup finished meanwhile
+                final UidDetail detail = mUidDetailCache.get(uid);
+                if (detail != null) {
+                    return detail;
+                }
+                pending = new PendingDetail();
+                mPending.put(uid, pending);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            try {
+                pending.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return pending.detail;
+        }
+
+        try {
+            pending.detail = resolveUidDetail(uid);
+            mUidDetailCache.put(uid, pending.detail);
+        } finally {
+            synchronized (mPending) {
+                mPending.remove(uid);
+            }
+            pending.done.countDown();
+        }
+        return pending.detail;
+    }
+
+    /**
+     * Resolve details for all the given UIDs in the background, so they can
+     * later be bound from cache, then notify the callback.
+     */
+    public void resolveAll(final int[] uids, final Callback callback) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int uid : uids) {
+                    getUidDetail(uid, true);
+                }
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUidDetailsResolved(uids);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private UidDetail resolveUidDetail(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
@@ -66,19 +156,16 @@ public class UidDetailProvider {
             case android.os.Process.SYSTEM_UID:
                 detail.label = res.getString(R.string.process_kernel_label);
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
             case TrafficStats.UID_REMOVED:
                 detail.label = res.getString(R.string.data_usage_uninstalled_apps);
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
             case TrafficStats.UID_TETHERING:
                 final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
                         Context.CONNECTIVITY_SERVICE);
                 detail.label = res.getString(Utils.getTetheringLabel(cm));
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
         }
 
@@ -90,7 +177,7 @@ public class UidDetailProvider {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                detail.icon = AppIconCache.getInstance(mContext).getIcon(info);
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
@@ -102,7 +189,7 @@ public class UidDetailProvider {
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        detail.icon = AppIconCache.getInstance(mContext).getIcon(appInfo);
                     }
                 }
             }
@@ -113,7 +200,6 @@ public class UidDetailProvider {
             detail.label = Integer.toString(uid);
         }
 
-        mUidDetailCache.put(uid, detail);
         return detail;
     }
 }
@@ -33,6 +33,7 @@ import android.view.View;
 
 import com.android.internal.util.Objects;
 import com.android.settings.R;
+import com.android.settings.net.NetworkStatsIndex;
 import com.android.settings.widget.ChartSweepView.OnSweepListener;
 
 /**
@@ -170,7 +171,11 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
-        mSeries.bindNetworkStats(stats);
+        bindNetworkStats(stats, null);
+    }
+
+    public void bindNetworkStats(NetworkStatsHistory stats, NetworkStatsIndex index) {
+        mSeries.bindNetworkStats(stats, index);
         mHistory = stats;
         updateVertAxisBounds(null);
         updateEstimateVisible();
@@ -179,7 +184,11 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindDetailNetworkStats(NetworkStatsHistory stats) {
-        mDetailSeries.bindNetworkStats(stats);
+        bindDetailNetworkStats(stats, null);
+    }
+
+    public void bindDetailNetworkStats(NetworkStatsHistory stats, NetworkStatsIndex index) {
+        mDetailSeries.bindNetworkStats(stats, index);
         mDetailSeries.setVisibility(stats != null ? View.VISIBLE : View.GONE);
         if (mHistory != null) {
             mDetailSeries.setEndTime(mHistory.getEnd());
@@ -21,6 +21,7 @@ import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
@@ -29,11 +30,15 @@ import android.graphics.Paint.Style;
 import android.graphics.Path;
 import android.graphics.RectF;
 import android.net.NetworkStatsHistory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
 import com.android.settings.R;
+import com.android.settings.net.NetworkStatsIndex;
 import com.google.common.base.Preconditions;
 
 /**
@@ -53,6 +58,7 @@ public class ChartNetworkSeriesView extends View {
     private Paint mPaintEstimate;
 
     private NetworkStatsHistory mStats;
+    private NetworkStatsIndex mIndex;
 
     private Path mPathStroke;
     private Path mPathFill;
@@ -73,6 +79,40 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /** Pixel column of the last point emitted into the series paths. */
+    private int mColumn;
+    /** Last point seen in {@link #mColumn}, not yet emitted. */
+    private float mPendingX;
+    private float mPendingY;
+    private boolean mHasPending;
+    /** Number of segments emitted by last {@link #generatePath()}. */
+    private int mSegmentCount;
+
+    /**
+     * The series is rasterized in the background into two layers, one as
+     * drawn inside the primary range and one as drawn outside it, so that
+     * moving the primary range only composites bitmaps.
+     */
+    private Bitmap mLayerPrimary;
+    private Bitmap mLayerSecondary;
+    /** Layers no longer shown, kept to render the next ones into. */
+    private Bitmap mSparePrimary;
+    private Bitmap mSpareSecondary;
+    /** Bumped whenever cached layers no longer match what would be drawn. */
+    private int mLayerGeneration;
+    private int mLayerRequested = -1;
+    private boolean mLayersReady;
+
+    private static HandlerThread sRenderThread;
+    private static Handler sRenderHandler;
+    private final Handler mMainHandler = new Handler();
+
+    /** Frame time instrumentation, split by cached and direct frames. */
+    private int mCachedFrames;
+    private long mCachedFrameNanos;
+    private int mDirectFrames;
+    private long mDirectFrameNanos;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -130,10 +170,21 @@ public class ChartNetworkSeriesView extends View {
         mPaintEstimate.setStyle(Style.STROKE);
         mPaintEstimate.setAntiAlias(true);
         mPaintEstimate.setPathEffect(new DashPathEffect(new float[] { 10, 10 }, 1));
+
+        invalidateLayers();
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        bindNetworkStats(stats, null);
+    }
+
+    /**
+     * Bind the given {@link NetworkStatsHistory}, along with its prebuilt
+     * {@link NetworkStatsIndex}; the index is built here when missing.
+     */
+    public void bindNetworkStats(NetworkStatsHistory stats, NetworkStatsIndex index) {
         mStats = stats;
+        mIndex = (stats != null && index == null) ? new NetworkStatsIndex(stats) : index;
         invalidatePath();
         invalidate();
     }
@@ -156,14 +207,63 @@ public class ChartNetworkSeriesView extends View {
     public void invalidatePath() {
         mPathValid = false;
         mMax = 0;
+        invalidateLayers();
         invalidate();
     }
 
+    private void invalidateLayers() {
+        mLayerGeneration++;
+        mLayersReady = false;
+    }
+
+    private void releaseLayers() {
+        invalidateLayers();
+        recycle(mLayerPrimary);
+        recycle(mLayerSecondary);
+        recycle(mSparePrimary);
+        recycle(mSpareSecondary);
+        mLayerPrimary = mLayerSecondary = mSparePrimary = mSpareSecondary = null;
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Keep the given layers to render into next time, when they still match
+     * the view size and no others are kept already.
+     */
+    private void keepSpareLayers(Bitmap primary, Bitmap secondary) {
+        if (mSparePrimary == null && primary.getWidth() == getWidth()
+                && primary.getHeight() == getHeight()) {
+            mSparePrimary = primary;
+            mSpareSecondary = secondary;
+        } else {
+            primary.recycle();
+            secondary.recycle();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        invalidatePath();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseLayers();
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * currently bound {@link NetworkStatsHistory} data.  Package private
+     * for tests.
      */
-    private void generatePath() {
+    void generatePath() {
         if (LOGD) Log.d(TAG, "generatePath()");
 
         mMax = 0;
@@ -188,6 +288,9 @@ public class ChartNetworkSeriesView extends View {
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
+        mColumn = 0;
+        mHasPending = false;
+        mSegmentCount = 0;
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -196,13 +299,13 @@ public class ChartNetworkSeriesView extends View {
 
         NetworkStatsHistory.Entry entry = null;
 
+        final long bucketDuration = mIndex.getBucketDuration();
         final int start = mStats.getIndexBefore(mStart);
         final int end = mStats.getIndexAfter(mEnd);
+        long firstVisible = -1;
         for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
+            final long startTime = mIndex.getBucketStart(i);
+            final long endTime = startTime + bucketDuration;
 
             final float startX = mHoriz.convertToPoint(startTime);
             final float endX = mHoriz.convertToPoint(endTime);
@@ -210,21 +313,20 @@ public class ChartNetworkSeriesView extends View {
             // skip until we find first stats on screen
             if (endX < 0) continue;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+            // total through end of current bucket, read from prefix sums
+            if (firstVisible < 0) firstVisible = mIndex.getCumulativeBytes(i);
+            totalData = mIndex.getCumulativeBytes(i + 1) - firstVisible;
 
             final float startY = lastY;
             final float endY = mVert.convertToPoint(totalData);
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                lineToColumn(startX, startY);
             }
 
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            lineToColumn(endX, endY);
 
             lastX = endX;
             lastY = endY;
@@ -235,15 +337,16 @@ public class ChartNetworkSeriesView extends View {
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
 
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
+            lineToColumn(lastX, lastY);
         }
+        flushColumn();
 
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + totalData + " using " + mSegmentCount + " segments for "
+                    + (end - start + 1) + " buckets");
         }
 
         // drop to bottom of graph from current location
@@ -256,10 +359,9 @@ public class ChartNetworkSeriesView extends View {
         mPathEstimate.moveTo(lastX, lastY);
 
         final long now = System.currentTimeMillis();
-        final long bucketDuration = mStats.getBucketDuration();
 
         // long window is average over two weeks
-        entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+        entry = mIndex.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
         final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                 / entry.bucketDuration;
 
@@ -269,7 +371,7 @@ public class ChartNetworkSeriesView extends View {
 
             // short window is day average last week
             final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
-            entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
+            entry = mIndex.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
             final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
@@ -286,11 +388,52 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Add a line to the series paths, collapsing all points that land in
+     * the same pixel column.  Series are cumulative, so the first and last
+     * points of a column are its min and max, and the line between them
+     * covers every point in between.
+     */
+    private void lineToColumn(float x, float y) {
+        final int column = (int) Math.floor(x);
+        if (column == mColumn) {
+            mPendingX = x;
+            mPendingY = y;
+            mHasPending = true;
+            return;
+        }
+
+        flushColumn();
+        mPathStroke.lineTo(x, y);
+        mPathFill.lineTo(x, y);
+        mSegmentCount++;
+        mColumn = column;
+    }
+
+    /**
+     * Emit the last point of the current pixel column, if any.
+     */
+    private void flushColumn() {
+        if (mHasPending) {
+            mPathStroke.lineTo(mPendingX, mPendingY);
+            mPathFill.lineTo(mPendingX, mPendingY);
+            mSegmentCount++;
+            mHasPending = false;
+        }
+    }
+
+    int getSegmentCount() {
+        return mSegmentCount;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
+        if (mEstimateVisible != estimateVisible) {
+            invalidateLayers();
+        }
         mEstimateVisible = estimateVisible;
         invalidate();
     }
@@ -307,8 +450,7 @@ public class ChartNetworkSeriesView extends View {
         final long maxVisible = mEstimateVisible ? mMaxEstimate : mMax;
         if (maxVisible <= 0 && mStats != null) {
             // haven't generated path yet; fall back to raw data
-            final NetworkStatsHistory.Entry entry = mStats.getValues(mStart, mEnd, null);
-            return entry.rxBytes + entry.txBytes;
+            return mIndex.getTotalBytes(mStart, mEnd);
         } else {
             return maxVisible;
         }
@@ -316,7 +458,7 @@ public class ChartNetworkSeriesView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        int save;
+        final long startNanos = System.nanoTime();
 
         if (!mPathValid) {
             generatePath();
@@ -325,6 +467,29 @@ public class ChartNetworkSeriesView extends View {
         final float primaryLeftPoint = mHoriz.convertToPoint(mPrimaryLeft);
         final float primaryRightPoint = mHoriz.convertToPoint(mPrimaryRight);
 
+        if (mLayersReady) {
+            drawLayers(canvas, primaryLeftPoint, primaryRightPoint);
+            mCachedFrames++;
+            mCachedFrameNanos += System.nanoTime() - startNanos;
+        } else {
+            drawSeries(canvas, primaryLeftPoint, primaryRightPoint);
+            mDirectFrames++;
+            mDirectFrameNanos += System.nanoTime() - startNanos;
+            requestLayers();
+        }
+
+        if (LOGD && (mCachedFrames + mDirectFrames) % 60 == 0) {
+            Log.d(TAG, "average frame time cached="
+                    + (mCachedFrames > 0 ? mCachedFrameNanos / mCachedFrames : 0) + "ns over "
+                    + mCachedFrames + " frames, direct="
+                    + (mDirectFrames > 0 ? mDirectFrameNanos / mDirectFrames : 0) + "ns over "
+                    + mDirectFrames + " frames");
+        }
+    }
+
+    private void drawSeries(Canvas canvas, float primaryLeftPoint, float primaryRightPoint) {
+        int save;
+
         if (mEstimateVisible) {
             save = canvas.save();
             canvas.clipRect(0, 0, getWidth(), getHeight());
@@ -347,6 +512,115 @@ public class ChartNetworkSeriesView extends View {
         canvas.drawPath(mPathFill, mPaintFill);
         canvas.drawPath(mPathStroke, mPaintStroke);
         canvas.restoreToCount(save);
+    }
+
+    /**
+     * Composite cached layers, using the secondary layer outside the primary
+     * range and the primary layer inside it.
+     */
+    private void drawLayers(Canvas canvas, float primaryLeftPoint, float primaryRightPoint) {
+        int save;
+
+        save = canvas.save();
+        canvas.clipRect(0, 0, primaryLeftPoint, getHeight());
+        canvas.drawBitmap(mLayerSecondary, 0, 0, null);
+        canvas.restoreToCount(save);
+
+        save = canvas.save();
+        canvas.clipRect(primaryRightPoint, 0, getWidth(), getHeight());
+        canvas.drawBitmap(mLayerSecondary, 0, 0, null);
+        canvas.restoreToCount(save);
+
+        save = canvas.save();
+        canvas.clipRect(primaryLeftPoint, 0, primaryRightPoint, getHeight());
+        canvas.drawBitmap(mLayerPrimary, 0, 0, null);
+        canvas.restoreToCount(save);
+    }
+
+    /**
+     * Rasterize current paths into layers on the render thread, swapping them
+     * in once done unless invalidated meanwhile.  Spare layers of the right
+     * size are drawn over instead of allocating new ones.
+     */
+    private void requestLayers() {
+        final int width = getWidth();
+        final int height = getHeight();
+        if (mLayerRequested == mLayerGeneration || width <= 0 || height <= 0) return;
+
+        final int generation = mLayerGeneration;
+        mLayerRequested = generation;
+
+        // snapshot everything, since paths are rebuilt on this thread
+        final Path fill = new Path(mPathFill);
+        final Path stroke = new Path(mPathStroke);
+        final Path estimate = mEstimateVisible ? new Path(mPathEstimate) : null;
+        final Paint paintFill = new Paint(mPaintFill);
+        final Paint paintFillSecondary = new Paint(mPaintFillSecondary);
+        final Paint paintStroke = new Paint(mPaintStroke);
+        final Paint paintEstimate = new Paint(mPaintEstimate);
+
+        Bitmap sparePrimary = mSparePrimary;
+        Bitmap spareSecondary = mSpareSecondary;
+        mSparePrimary = mSpareSecondary = null;
+        if (sparePrimary != null
+                && (sparePrimary.getWidth() != width || sparePrimary.getHeight() != height)) {
+            sparePrimary.recycle();
+            spareSecondary.recycle();
+            sparePrimary = spareSecondary = null;
+        }
+        final Bitmap reusePrimary = sparePrimary;
+        final Bitmap reuseSecondary = spareSecondary;
+
+        getRenderHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap primary;
+                final Bitmap secondary;
+                if (reusePrimary != null) {
+                    primary = reusePrimary;
+                    secondary = reuseSecondary;
+                    primary.eraseColor(Color.TRANSPARENT);
+                    secondary.eraseColor(Color.TRANSPARENT);
+                } else {
+                    primary = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    secondary = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                }
+
+                Canvas canvas = new Canvas(secondary);
+                if (estimate != null) canvas.drawPath(estimate, paintEstimate);
+                canvas.drawPath(fill, paintFillSecondary);
+
+                canvas = new Canvas(primary);
+                if (estimate != null) canvas.drawPath(estimate, paintEstimate);
+                canvas.drawPath(fill, paintFill);
+                canvas.drawPath(stroke, paintStroke);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLayerGeneration) {
+                            keepSpareLayers(primary, secondary);
+                            return;
+                        }
+                        if (mLayerPrimary != null) {
+                            keepSpareLayers(mLayerPrimary, mLayerSecondary);
+                        }
+                        mLayerPrimary = primary;
+                        mLayerSecondary = secondary;
+                        mLayersReady = true;
+                        invalidate();
+                    }
+                });
+            }
+        });
+    }
 
+    private static synchronized Handler getRenderHandler() {
+        if (sRenderHandler == null) {
+            sRenderThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sRenderThread.start();
+            sRenderHandler = new Handler(sRenderThread.getLooper());
+        }
+        return sRenderHandler;
     }
 }
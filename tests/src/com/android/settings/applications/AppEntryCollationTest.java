@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Checks that sorting by cached collation keys gives the collator's order,
+ * and times it against comparing labels with the collator.
+ */
+public class AppEntryCollationTest extends AndroidTestCase {
+    private static final String TAG = "AppEntryCollationTest";
+
+    private static final String[] WORDS = {
+        "Calendar", "calculator", "Camera", "\u00c9cole", "ecole", "Email", "Zebra",
+        "\u00e9t\u00e9", "Gallery", "gmail", "Maps", "Market", "M\u00fcsic", "Music",
+    };
+
+    static AppEntry makeEntry(String packageName, String label, long id) {
+        ApplicationInfo info = new ApplicationInfo();
+        info.packageName = packageName;
+        info.sourceDir = "/data/app/" + packageName + ".apk";
+        AppEntrySnapshot.Record record = new AppEntrySnapshot.Record();
+        record.packageName = packageName;
+        record.label = label;
+        record.normalizedLabel = ApplicationsState.normalize(label);
+        return new AppEntry(info, id, record);
+    }
+
+    static ArrayList<AppEntry> makeEntries(int count, long seed) {
+        Random random = new Random(seed);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(count);
+        for (int i = 0; i < count; i++) {
+            String label = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            entries.add(makeEntry("com.example.app" + i, label, i));
+        }
+        return entries;
+    }
+
+    private static final Comparator<AppEntry> COLLATOR_COMPARATOR = new Comparator<AppEntry>() {
+        private final Collator mCollator = Collator.getInstance();
+
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            return mCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    @SmallTest
+    public void testAlphaOrderMatchesCollator() {
+        ArrayList<AppEntry> byKey = makeEntries(200, 1);
+        ArrayList<AppEntry> byCollator = new ArrayList<AppEntry>(byKey);
+        Collections.sort(byKey, ApplicationsState.ALPHA_COMPARATOR);
+        Collections.sort(byCollator, COLLATOR_COMPARATOR);
+        for (int i = 0; i < byKey.size(); i++) {
+            assertEquals(0, COLLATOR_COMPARATOR.compare(byKey.get(i), byCollator.get(i)));
+        }
+    }
+
+    @SmallTest
+    public void testLabelChangeDropsKey() {
+        AppEntry entry = makeEntry("com.example.a", "Alpha", 1);
+        assertNotNull(entry.getLabelKey());
+        entry.label = null;
+        entry.mounted = false;
+        entry.ensureLabel(getContext());
+        assertEquals("com.example.a", entry.getLabelKey().getSourceString());
+    }
+
+    @LargeTest
+    public void testSortBenchmark() {
+        final int count = 2000;
+        final int runs = 5;
+        long keyTime = 0;
+        long collatorTime = 0;
+        for (int run = 0; run < runs; run++) {
+            ArrayList<AppEntry> entries = makeEntries(count, run);
+            long start = SystemClock.elapsedRealtime();
+            Collections.sort(new ArrayList<AppEntry>(entries), COLLATOR_COMPARATOR);
+            collatorTime += SystemClock.elapsedRealtime() - start;
+
+            // Includes building the keys, as the first rebuild does.
+            start = SystemClock.elapsedRealtime();
+            Collections.sort(entries, ApplicationsState.ALPHA_COMPARATOR);
+            keyTime += SystemClock.elapsedRealtime() - start;
+        }
+        Log.i(TAG, "Sorting " + count + " entries: collator " + (collatorTime / runs)
+                + "ms, collation keys " + (keyTime / runs) + "ms");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Points {@link ProcMemoryReader} at a fake proc tree.
+ */
+public class ProcMemoryReaderTest extends AndroidTestCase {
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "fakeproc");
+        deleteTree(mRoot);
+        mRoot.mkdirs();
+        write("meminfo",
+                "MemTotal:         840000 kB\n"
+                + "MemFree:           20000 kB\n"
+                + "Buffers:            3000 kB\n"
+                + "Cached:           300000 kB\n"
+                + "SwapCached:            0 kB\n");
+        write("100/statm", "20000 1000 500 10 0 4000 0\n");
+        write("200/statm", "30000 2500 700 10 0 6000 0\n");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(mRoot);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testMemInfo() {
+        ProcMemoryReader reader = new ProcMemoryReader(mRoot, 4096);
+        reader.readMemInfo();
+        assertEquals(840000L * 1024, reader.getTotalSize());
+        assertEquals(20000L * 1024, reader.getFreeSize());
+        // SwapCached must not be taken for Cached.
+        assertEquals(300000L * 1024, reader.getCachedSize());
+    }
+
+    @SmallTest
+    public void testMissingMemInfo() {
+        ProcMemoryReader reader = new ProcMemoryReader(new File(mRoot, "missing"), 4096);
+        reader.readMemInfo();
+        assertEquals(0, reader.getTotalSize());
+        assertEquals(0, reader.getFreeSize());
+        assertEquals(0, reader.getCachedSize());
+    }
+
+    @SmallTest
+    public void testResidentSizes() {
+        long[] sizes = new long[3];
+        new ProcMemoryReader(mRoot, 4096).readResidentSizes(new int[] { 100, 300, 200 }, sizes);
+        assertEquals(4000, sizes[0]);
+        // Gone away
+        assertEquals(0, sizes[1]);
+        assertEquals(10000, sizes[2]);
+
+        new ProcMemoryReader(mRoot, 16384).readResidentSizes(new int[] { 100 }, sizes);
+        assertEquals(16000, sizes[0]);
+    }
+
+    private void write(String name, String contents) throws IOException {
+        File file = new File(mRoot, name);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
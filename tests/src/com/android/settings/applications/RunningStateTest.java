@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.os.Debug;
+import android.os.Process;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives {@link RunningState#update} with a fake process source.
+ */
+public class RunningStateTest extends AndroidTestCase {
+
+    /**
+     * Background processes with fixed pids and sizes, and no services.
+     */
+    static class FakeProcessInfoSource implements ProcessInfoSource {
+        final ArrayList<ActivityManager.RunningServiceInfo> mServices
+                = new ArrayList<ActivityManager.RunningServiceInfo>();
+        final ArrayList<ActivityManager.RunningAppProcessInfo> mProcesses
+                = new ArrayList<ActivityManager.RunningAppProcessInfo>();
+        long mSizeKb = 1024;
+
+        FakeProcessInfoSource(int firstPid, int count) {
+            for (int i = 0; i < count; i++) {
+                ActivityManager.RunningAppProcessInfo pi = new ActivityManager.RunningAppProcessInfo(
+                        "com.example.fake" + i, firstPid + i, null);
+                pi.uid = Process.myUid();
+                pi.importance = ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND;
+                mProcesses.add(pi);
+            }
+        }
+
+        @Override
+        public List<ActivityManager.RunningServiceInfo> getRunningServices(int maxNum) {
+            return mServices;
+        }
+
+        @Override
+        public List<ActivityManager.RunningAppProcessInfo> getRunningAppProcesses() {
+            return mProcesses;
+        }
+
+        @Override
+        public boolean getProcessMemory(int[] pids, long[] outSizes) {
+            for (int i = 0; i < pids.length; i++) {
+                outSizes[i] = mSizeKb;
+            }
+            return true;
+        }
+
+        @Override
+        public void readMemInfo(MemInfo outInfo) {
+        }
+    }
+
+    private RunningState mState;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mState = RunningState.getInstance(getContext());
+    }
+
+    @MediumTest
+    public void testChangeSet() {
+        FakeProcessInfoSource source = new FakeProcessInfoSource(20000, 10);
+        assertTrue(mState.update(getContext(), source).isStructural());
+
+        RunningState.ChangeSet changes = mState.update(getContext(), source);
+        assertFalse(changes.isStructural());
+        assertFalse(changes.mSizesChanged);
+
+        source.mSizeKb = 64 * 1024;
+        changes = mState.update(getContext(), source);
+        assertTrue(changes.mSizesChanged);
+        assertFalse(changes.isStructural());
+
+        source.mProcesses.remove(5);
+        changes = mState.update(getContext(), source);
+        assertTrue(changes.isStructural());
+        assertEquals(1, changes.mRemoved.size());
+    }
+
+    @MediumTest
+    public void testSteadyStateAllocations() {
+        final int few = countSteadyStateAllocations(new FakeProcessInfoSource(30000, 20));
+        final int many = countSteadyStateAllocations(new FakeProcessInfoSource(40000, 200));
+        // Objects are reused, so more processes must not cost more objects.
+        assertTrue("20 processes: " + few + " allocations, 200 processes: " + many,
+                many - few < 180);
+    }
+
+    private int countSteadyStateAllocations(FakeProcessInfoSource source) {
+        mState.update(getContext(), source);
+        mState.update(getContext(), source);
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            mState.update(getContext(), source);
+            return Debug.getThreadAllocCount();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures a directory tree in the cache directory with
+ * {@link DirectorySizeCache}.
+ */
+public class DirectorySizeCacheTest extends AndroidTestCase {
+    private static final String TAG = "DirectorySizeCacheTest";
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "sizes");
+        deleteTree(mRoot);
+        mRoot.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(mRoot);
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testFileGrownInPlace() throws IOException {
+        final File dir = new File(mRoot, "a");
+        dir.mkdirs();
+        final File file = new File(dir, "file");
+        append(file, 100);
+        append(new File(mRoot, "top"), 10);
+
+        final DirectorySizeCache cache = new DirectorySizeCache();
+        assertEquals(110, cache.measure(mRoot.getPath()));
+        cache.commit();
+
+        final long modified = dir.lastModified();
+        append(file, 50);
+        dir.setLastModified(modified);
+        assertEquals(160, cache.measure(mRoot.getPath()));
+    }
+
+    @MediumTest
+    public void testEntriesAddedAndRemoved() throws IOException {
+        final File dir = new File(mRoot, "a");
+        dir.mkdirs();
+        append(new File(dir, "file"), 100);
+
+        final DirectorySizeCache cache = new DirectorySizeCache();
+        assertEquals(100, cache.measure(mRoot.getPath()));
+        cache.commit();
+
+        // Some file systems keep modification times in whole seconds.
+        final long modified = dir.lastModified();
+        append(new File(dir, "other"), 20);
+        new File(dir, "sub").mkdirs();
+        append(new File(dir, "sub/file"), 5);
+        dir.setLastModified(modified + 2000);
+        assertEquals(125, cache.measure(mRoot.getPath()));
+        cache.commit();
+
+        new File(dir, "file").delete();
+        dir.setLastModified(modified + 4000);
+        assertEquals(25, cache.measure(mRoot.getPath()));
+    }
+
+    @MediumTest
+    public void testSaveAndLoad() throws IOException {
+        for (int d = 0; d < 5; d++) {
+            final File dir = new File(mRoot, "dir" + d);
+            dir.mkdirs();
+            for (int f = 0; f < 5; f++) {
+                append(new File(dir, "file" + f), d + f);
+            }
+        }
+        final DirectorySizeCache cache = new DirectorySizeCache();
+        final long size = cache.measure(mRoot.getPath());
+        assertEquals(100, size);
+        cache.commit();
+
+        final File saved = new File(getContext().getCacheDir(), "sizes.saved");
+        try {
+            cache.save(saved);
+            final DirectorySizeCache loaded = new DirectorySizeCache();
+            loaded.load(saved);
+            assertEquals(size, loaded.measure(mRoot.getPath()));
+        } finally {
+            saved.delete();
+        }
+    }
+
+    @LargeTest
+    public void testMeasureBenchmark() throws IOException {
+        final int dirCount = 1000;
+        final int filesPerDir = 100;
+        long expectedSize = 0;
+        for (int d = 0; d < dirCount; d++) {
+            final File dir = new File(mRoot, "dir" + (d % 10) + "/dir" + d);
+            dir.mkdirs();
+            for (int f = 0; f < filesPerDir; f++) {
+                append(new File(dir, "file" + f), f % 8);
+                expectedSize += f % 8;
+            }
+        }
+
+        final DirectorySizeCache cache = new DirectorySizeCache();
+        long start = SystemClock.elapsedRealtime();
+        final long coldSize = cache.measure(mRoot.getPath());
+        final long coldMillis = SystemClock.elapsedRealtime() - start;
+        cache.commit();
+
+        start = SystemClock.elapsedRealtime();
+        final long warmSize = cache.measure(mRoot.getPath());
+        final long warmMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, (dirCount * filesPerDir) + " files: " + coldMillis + "ms listing, "
+                + warmMillis + "ms from cached listings");
+        assertEquals(expectedSize, coldSize);
+        assertEquals(coldSize, warmSize);
+    }
+
+    private static void append(File file, int length) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
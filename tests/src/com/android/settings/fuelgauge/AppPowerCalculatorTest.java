@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks {@link AppPowerCalculator} against power worked out by hand.
+ */
+public class AppPowerCalculatorTest extends AndroidTestCase {
+    private static final String TAG = "AppPowerCalculatorTest";
+
+    private static final double DELTA = 1e-9;
+
+    @SmallTest
+    public void testCompute() {
+        final AppPowerCalculator calc = new AppPowerCalculator();
+        calc.reset(new double[] { 100, 200 }, 50, 30, 0.001);
+
+        calc.beginUid(10001, 2000, 1000, 3000, 4000);
+        // 1000ms at 3/4 * 100mA + 1/4 * 200mA = 125000
+        calc.addProcess("com.example.a", 1000, 500, new long[] { 30, 10 });
+        // 3000ms at 200mA = 600000, but wake lock names never drain the most
+        calc.addProcess("*wakelock*", 3000, 0, new long[] { 0, 10 });
+        // 6000ms at 40mA = 240
+        calc.addSensor(6000, 40, true);
+        // 1000ms at 10mA = 10
+        calc.addSensor(1000, 10, false);
+
+        calc.beginUid(10002, 0, 0, 0, 0);
+        // no time at any speed, so no CPU power
+        calc.addProcess("com.example.b", 2000, 3000, new long[] { 0, 0 });
+
+        calc.beginUid(Process.WIFI_UID, 0, 0, 0, 10000);
+
+        calc.compute();
+        assertEquals(3, calc.mCount);
+
+        // CPU 725000 / 1000 + wake lock 2000 * 50 / 1000 + data 4000 * 0.001
+        // + WIFI 4000 * 30 / 1000 + sensors 240 + 10
+        assertEquals(725 + 100 + 4 + 120 + 240 + 10, calc.mPower[0], DELTA);
+        assertEquals(4000, calc.mCpuTime[0]);
+        assertEquals(500, calc.mCpuFgTime[0]);
+        assertEquals(6000, calc.mGpsTime[0]);
+        assertEquals("com.example.a", calc.getPackageWithHighestDrain(0));
+
+        // foreground time not yet gathered into CPU time
+        assertEquals(0, calc.mPower[1], DELTA);
+        assertEquals(3000, calc.mCpuTime[1]);
+        assertEquals("com.example.b", calc.getPackageWithHighestDrain(1));
+
+        assertEquals(10000 * 30 / 1000, calc.mPower[2], DELTA);
+        assertNull(calc.getPackageWithHighestDrain(2));
+    }
+
+    @SmallTest
+    public void testSelectTop() {
+        final double[] power = { 5, 1, 9, 7, 3 };
+        final int[] uids = { 1, 2, 3, 4, 5 };
+
+        assertTrue(Arrays.equals(new int[] { 3, 0, 4 },
+                AppPowerCalculator.selectTop(power, uids, 5, 3, 3, -1)));
+        assertTrue(Arrays.equals(new int[] { 2, 3, 0, 4, 1 },
+                AppPowerCalculator.selectTop(power, uids, 5, 10, -1, -1)));
+        // only the first count powers are considered
+        assertTrue(Arrays.equals(new int[] { 0, 1 },
+                AppPowerCalculator.selectTop(power, uids, 2, 3, -1, -1)));
+    }
+
+    @LargeTest
+    public void testComputeBenchmark() {
+        final int uidCount = 600;
+        final int runs = 20;
+        final double[] speedPower = { 50, 100, 150, 200, 250 };
+        final Random random = new Random(7);
+        final AppPowerCalculator calc = new AppPowerCalculator();
+        final long[] stepTimes = new long[speedPower.length];
+
+        long fillMillis = 0;
+        long computeMillis = 0;
+        for (int run = 0; run < runs; run++) {
+            long start = SystemClock.elapsedRealtime();
+            calc.reset(speedPower, 60, 30, 0.0001);
+            for (int u = 0; u < uidCount; u++) {
+                calc.beginUid(Process.FIRST_APPLICATION_UID + u, random.nextInt(100000),
+                        random.nextInt(1000000), random.nextInt(1000000), random.nextInt(100000));
+                for (int p = 0; p < 3; p++) {
+                    for (int s = 0; s < stepTimes.length; s++) {
+                        stepTimes[s] = random.nextInt(1000);
+                    }
+                    calc.addProcess("com.example.app" + u, random.nextInt(100000),
+                            random.nextInt(100000), stepTimes);
+                }
+                calc.addSensor(random.nextInt(100000), 40, true);
+            }
+            fillMillis += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            calc.compute();
+            calc.selectTop(10, Process.WIFI_UID, Process.BLUETOOTH_GID);
+            computeMillis += SystemClock.elapsedRealtime() - start;
+        }
+
+        Log.i(TAG, uidCount + " uids: " + fillMillis / runs + "ms to fill, "
+                + computeMillis / runs + "ms to compute and select per run");
+        assertEquals(uidCount, calc.mCount);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.YEAR_IN_MILLIS;
+
+import android.graphics.Path;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.settings.widget.ChartDataUsageView.DataAxis;
+import com.android.settings.widget.ChartDataUsageView.TimeAxis;
+
+import java.util.Random;
+
+/**
+ * Checks how many segments {@link ChartNetworkSeriesView} emits for long
+ * histories, and how long generating them takes.
+ */
+public class ChartNetworkSeriesViewTest extends AndroidTestCase {
+    private static final String TAG = "ChartNetworkSeriesViewTest";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int RUNS = 20;
+
+    private NetworkStatsHistory mStats;
+    private long mStart;
+    private long mEnd;
+    private long mTotal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEnd = System.currentTimeMillis() / HOUR_IN_MILLIS * HOUR_IN_MILLIS;
+        mStart = mEnd - YEAR_IN_MILLIS;
+        mStats = new NetworkStatsHistory(HOUR_IN_MILLIS, (int) (YEAR_IN_MILLIS / HOUR_IN_MILLIS));
+        final Random random = new Random(42);
+        mTotal = 0;
+        for (long time = mStart; time < mEnd; time += HOUR_IN_MILLIS) {
+            final long rx = random.nextInt(10 * 1024 * 1024);
+            final long tx = random.nextInt(1024 * 1024);
+            mStats.recordData(time, time + HOUR_IN_MILLIS,
+                    new NetworkStats.Entry(rx, 0, tx, 0, 0));
+            mTotal += rx + tx;
+        }
+    }
+
+    private ChartNetworkSeriesView makeSeries() {
+        final TimeAxis horiz = new TimeAxis();
+        horiz.setBounds(mStart, mEnd);
+        horiz.setSize(WIDTH);
+        final ChartAxis vert = new InvertedChartAxis(new DataAxis());
+        vert.setBounds(0, mTotal);
+        vert.setSize(HEIGHT);
+
+        final ChartNetworkSeriesView series = new ChartNetworkSeriesView(getContext());
+        series.init(horiz, vert);
+        series.layout(0, 0, WIDTH, HEIGHT);
+        series.setBounds(mStart, mEnd);
+        series.bindNetworkStats(mStats);
+        return series;
+    }
+
+    @SmallTest
+    public void testSegmentsBoundedByWidth() {
+        final ChartNetworkSeriesView series = makeSeries();
+        series.generatePath();
+
+        // At most two segments per pixel column, plus the gap and end points.
+        final int segments = series.getSegmentCount();
+        assertTrue("segments=" + segments, segments <= 2 * (WIDTH + 2));
+        assertEquals(mTotal, series.getMaxVisible());
+    }
+
+    @LargeTest
+    public void testGeneratePathBenchmark() {
+        final ChartNetworkSeriesView series = makeSeries();
+        series.generatePath();
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RUNS; i++) {
+            series.generatePath();
+        }
+        final long collapsedMillis = SystemClock.elapsedRealtime() - start;
+
+        // The same points, one segment per bucket end, as before collapsing.
+        final TimeAxis horiz = new TimeAxis();
+        horiz.setBounds(mStart, mEnd);
+        horiz.setSize(WIDTH);
+        final ChartAxis vert = new InvertedChartAxis(new DataAxis());
+        vert.setBounds(0, mTotal);
+        vert.setSize(HEIGHT);
+        final Path stroke = new Path();
+        final Path fill = new Path();
+        NetworkStatsHistory.Entry entry = null;
+        int bucketSegments = 0;
+        start = SystemClock.elapsedRealtime();
+        for (int run = 0; run < RUNS; run++) {
+            stroke.reset();
+            fill.reset();
+            stroke.moveTo(0, HEIGHT);
+            fill.moveTo(0, HEIGHT);
+            bucketSegments = 0;
+            long total = 0;
+            for (int i = 0; i < mStats.size(); i++) {
+                entry = mStats.getValues(i, entry);
+                total += entry.rxBytes + entry.txBytes;
+                final float x = horiz.convertToPoint(entry.bucketStart + entry.bucketDuration);
+                final float y = vert.convertToPoint(total);
+                stroke.lineTo(x, y);
+                fill.lineTo(x, y);
+                bucketSegments++;
+            }
+        }
+        final long bucketMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, mStats.size() + " buckets over " + WIDTH + "px: "
+                + series.getSegmentCount() + " segments in " + collapsedMillis / RUNS
+                + "ms per path, against " + bucketSegments + " segments in "
+                + bucketMillis / RUNS + "ms per path");
+        assertTrue(series.getSegmentCount() < bucketSegments);
+    }
+}